@@ -0,0 +1,207 @@
+package edu.ucla.cens.Updater;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import edu.ucla.cens.systemlog.Log;
+
+/**
+ * The APKs that have been downloaded, kept in our files directory so that an
+ * APK that was downloaded but never installed doesn't have to be downloaded
+ * again. Each APK is named for its package and version, so a cached APK is
+ * only ever used for exactly that version.
+ * 
+ * The cache has a budget in bytes that the user can set. When it is over its
+ * budget, the least recently used APKs are removed first. APKs for versions
+ * that are already installed, or older, are always removed.
+ * 
+ * @version 1.0
+ */
+public class ApkCache
+{
+	private static final String TAG = "CENS.Updater.ApkCache";
+	
+	/**
+	 * The key for the preference of how many megabytes the cache may use.
+	 * This is kept in the default preferences so that it can be set in the
+	 * preferences screen.
+	 */
+	public static final String PREFERENCE_BUDGET_MEGABYTES = "apkCacheBudgetMegabytes";
+	
+	private static final int DEFAULT_BUDGET_MEGABYTES = 25;
+	private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+	
+	private static final String APK_EXTENSION = ".apk";
+	private static final char VERSION_SEPARATOR = '-';
+	
+	private final Context mContext;
+	
+	/**
+	 * Creates a view of the cache in the Context's files directory.
+	 * 
+	 * @param context The Context in which this application is running.
+	 */
+	public ApkCache(Context context)
+	{
+		mContext = context.getApplicationContext();
+	}
+	
+	/**
+	 * Returns the file in which the APK for a version of a package is
+	 * cached. It may not exist.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @param version The version of the package.
+	 * 
+	 * @return The file for that version of the package.
+	 */
+	public File getFile(String qualifiedName, int version)
+	{
+		return mContext.getFileStreamPath(qualifiedName + VERSION_SEPARATOR + version + APK_EXTENSION);
+	}
+	
+	/**
+	 * Returns whether or not the APK for a version of a package is cached.
+	 * If it is, it is marked as just used.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @param version The version of the package.
+	 * 
+	 * @return True if the APK is cached; false, otherwise.
+	 */
+	public boolean contains(String qualifiedName, int version)
+	{
+		File apkFile = getFile(qualifiedName, version);
+		if(apkFile.exists())
+		{
+			apkFile.setLastModified(System.currentTimeMillis());
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Removes the APKs for versions that are already installed and then,
+	 * if the cache is over its budget, the least recently used APKs until it
+	 * is within its budget. APKs that are needed for the current updates are
+	 * never removed for being over the budget.
+	 * 
+	 * Any other APKs in our files directory are left over from before the
+	 * cache existed and are removed.
+	 * 
+	 * @param keep The files of the APKs that are needed for the current
+	 * 			   updates.
+	 */
+	public void trim(Set<File> keep)
+	{
+		File[] files = mContext.getFilesDir().listFiles();
+		if(files == null)
+		{
+			return;
+		}
+		
+		InstalledPackagesSnapshot snapshot = InstalledPackagesSnapshot.getInstance(mContext);
+		
+		long totalSize = 0;
+		int numEntries = 0;
+		File[] entries = new File[files.length];
+		for(File file : files)
+		{
+			String name = file.getName();
+			if(!name.endsWith(APK_EXTENSION))
+			{
+				continue;
+			}
+			
+			int separator = name.lastIndexOf(VERSION_SEPARATOR);
+			int version = -1;
+			if(separator > 0)
+			{
+				try
+				{
+					version = Integer.parseInt(name.substring(separator + 1, name.length() - APK_EXTENSION.length()));
+				}
+				catch(NumberFormatException e)
+				{
+					version = -1;
+				}
+			}
+			
+			if(version < 0)
+			{
+				Log.i(TAG, "Removing an APK that isn't in the cache: " + name);
+				file.delete();
+			}
+			else if((!keep.contains(file)) && (version <= snapshot.getVersionCode(name.substring(0, separator))))
+			{
+				Log.i(TAG, "Removing a cached APK whose version is already installed: " + name);
+				file.delete();
+			}
+			else
+			{
+				totalSize += file.length();
+				entries[numEntries++] = file;
+			}
+		}
+		
+		long budget = getBudget();
+		if(totalSize <= budget)
+		{
+			return;
+		}
+		
+		// Remove the least recently used APKs first.
+		Arrays.sort(entries, 0, numEntries, new Comparator<File>()
+		{
+			@Override
+			public int compare(File lhs, File rhs)
+			{
+				long lhsModified = lhs.lastModified();
+				long rhsModified = rhs.lastModified();
+				return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+			}
+		});
+		
+		for(int i = 0; (i < numEntries) && (totalSize > budget); i++)
+		{
+			if(keep.contains(entries[i]))
+			{
+				continue;
+			}
+			
+			Log.i(TAG, "Removing a cached APK to stay within the budget: " + entries[i].getName());
+			totalSize -= entries[i].length();
+			entries[i].delete();
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes the cache may use as set by the user.
+	 * 
+	 * @return The budget of the cache in bytes.
+	 */
+	private long getBudget()
+	{
+		String budget = PreferenceManager.getDefaultSharedPreferences(mContext).getString(PREFERENCE_BUDGET_MEGABYTES, null);
+		if(budget != null)
+		{
+			try
+			{
+				return Long.parseLong(budget) * BYTES_PER_MEGABYTE;
+			}
+			catch(NumberFormatException e)
+			{
+				Log.e(TAG, "Invalid cache budget: " + budget, e);
+			}
+		}
+		
+		return DEFAULT_BUDGET_MEGABYTES * BYTES_PER_MEGABYTE;
+	}
+}
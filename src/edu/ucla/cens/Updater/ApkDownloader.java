@@ -0,0 +1,1165 @@
+package edu.ucla.cens.Updater;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.database.SQLException;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.SystemClock;
+import edu.ucla.cens.systemlog.Log;
+
+/**
+ * Downloads packages into our files directory as world readable APKs so that
+ * Android's package installer can read them. This is used both by the
+ * Installer and to download updates in the background as soon as they are
+ * found.
+ * 
+ * A package is first written to a partial file which is only renamed to the
+ * APK once it is complete. If a partial file from an earlier attempt exists
+ * for the same URL, only the rest of the file is requested from the server.
+ * If the server doesn't honor the range or the file on the server has
+ * changed, the whole file is downloaded again.
+ * 
+ * If the manifest gave a size or SHA-256 hash for the package, the hash is
+ * computed as the file is downloaded, and a file that doesn't match is
+ * discarded before it can be installed.
+ * 
+ * If an update has a patch for the version that is installed, the patch is
+ * applied to the installed APK instead, which is verified against the hash.
+ * If anything goes wrong with the patch, the whole APK is downloaded.
+ * 
+ * Completed APKs are kept in the {@link ApkCache}, which is checked before
+ * anything is downloaded.
+ * 
+ * @version 1.0
+ */
+public class ApkDownloader
+{
+	private static final String TAG = "CENS.Updater.ApkDownloader";
+	
+	/**
+	 * The outcome of a download.
+	 */
+	public static enum Result
+	{
+		/**
+		 * The APK is complete and ready to be installed.
+		 */
+		COMPLETE,
+		/**
+		 * The download failed but may be resumed later.
+		 */
+		FAILED,
+		/**
+		 * The listener asked for the download to stop.
+		 */
+		CANCELLED,
+		/**
+		 * The server no longer has the file or reported a different size for
+		 * it than the manifest, which generally means that the update is out
+		 * of date.
+		 */
+		OUT_OF_DATE,
+		/**
+		 * The downloaded file didn't match the size or hash given by the 
+		 * manifest, so it was discarded.
+		 */
+		CORRUPT
+	}
+	
+	/**
+	 * Receives the progress of a download and may stop it.
+	 */
+	public static interface DownloadListener
+	{
+		/**
+		 * Called each time more of the file has been saved.
+		 * 
+		 * @param totalDownloaded The number of bytes of the file that have
+		 * 						  been saved thus far.
+		 * 
+		 * @param totalLength The total length of the file or UNKNOWN_LENGTH 
+		 * 					  if the server didn't say and the manifest
+		 * 					  didn't give a size.
+		 */
+		public void onProgress(int totalDownloaded, int totalLength);
+		
+		/**
+		 * Called throughout the download to check if it should stop. What
+		 * has been downloaded thus far is kept so it can be resumed.
+		 * 
+		 * @return True if the download should stop; false, otherwise.
+		 */
+		public boolean isCancelled();
+	}
+	
+	private static final int MAX_CHUNK_LENGTH = 4096;
+	
+	// The download buffer is resized within these bounds every interval so
+	// that a single read takes about the given time.
+	private static final int MIN_BUFFER_LENGTH = 4096;
+	private static final int MAX_BUFFER_LENGTH = 64 * 1024;
+	private static final long BUFFER_READ_TIME = 20;
+	private static final long BUFFER_RESIZE_INTERVAL = 250;
+	
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	
+	/**
+	 * The total length given to listeners when the length of a file isn't
+	 * known, such as when the server sends it in chunks.
+	 */
+	public static final int UNKNOWN_LENGTH = -1;
+	
+	private static final int VERSION_CODE_JELLY_BEAN = 16;
+	
+	private static final String PARTIAL_EXTENSION = ".apk.part";
+	private static final String PATCHED_EXTENSION = ".apk.patched";
+	
+	private static final String PREFERENCE_PARTIAL_URL = "partialDownloadUrl.";
+	private static final String PREFERENCE_PARTIAL_VALIDATOR = "partialDownloadValidator.";
+	
+	/**
+	 * One lock per package so that the Installer and a background download
+	 * never write the same files at the same time.
+	 */
+	private static final Map<String, Object> sPackageLocks = new HashMap<String, Object>();
+	
+	/**
+	 * The cached APKs whose hash has been checked in this process, with
+	 * their length at the time, so that they aren't hashed again every time
+	 * they are looked up.
+	 */
+	private static final Map<File, Long> sVerifiedFiles = new HashMap<File, Long>();
+	
+	private final Context mContext;
+	private final SharedPreferences mPreferences;
+	private final ApkCache mCache;
+	
+	/**
+	 * Creates a downloader that saves its files in the Context's files
+	 * directory.
+	 * 
+	 * @param context The Context in which this application is running.
+	 */
+	public ApkDownloader(Context context)
+	{
+		mContext = context.getApplicationContext();
+		mPreferences = mContext.getSharedPreferences(Database.PACKAGE_PREFERENCES, Context.MODE_PRIVATE);
+		mCache = new ApkCache(mContext);
+	}
+	
+	/**
+	 * Returns whether or not the device is currently connected to a network
+	 * that doesn't charge by the byte, such as Wi-Fi.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @return True if the active network is unmetered; false, otherwise.
+	 */
+	public static boolean isOnUnmeteredNetwork(Context context)
+	{
+		ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+		if((networkInfo == null) || (!networkInfo.isConnected()))
+		{
+			return false;
+		}
+		
+		// Whether or not a network is metered was added in Jelly Bean, after
+		// the version we build against, so it must be checked reflectively.
+		if(Build.VERSION.SDK_INT >= VERSION_CODE_JELLY_BEAN)
+		{
+			try
+			{
+				return !((Boolean) ConnectivityManager.class.getMethod("isActiveNetworkMetered").invoke(connectivityManager));
+			}
+			catch(Exception e)
+			{
+				Log.e(TAG, "Unable to check if the network is metered.", e);
+			}
+		}
+		
+		return networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
+	}
+	
+	/**
+	 * Returns the file where the complete APK for an update is saved.
+	 * 
+	 * @param packageInformation The update.
+	 * 
+	 * @return The APK file for the update's package and version.
+	 */
+	public File getApkFile(PackageInformation packageInformation)
+	{
+		return mCache.getFile(packageInformation.getQualifiedName(), packageInformation.getVersion());
+	}
+	
+	/**
+	 * Returns whether or not the APK for an update is already in the cache
+	 * and is what the manifest says it should be. A cached APK that doesn't
+	 * match the manifest's size or hash is deleted. This may have to read
+	 * the whole APK, so it must not be called on the UI thread.
+	 * 
+	 * @param packageInformation The update.
+	 * 
+	 * @return True if the APK is ready to be installed; false, otherwise.
+	 */
+	public boolean isDownloaded(PackageInformation packageInformation)
+	{
+		synchronized(getPackageLock(packageInformation.getQualifiedName()))
+		{
+			if(!mCache.contains(packageInformation.getQualifiedName(), packageInformation.getVersion()))
+			{
+				return false;
+			}
+			
+			File apkFile = getApkFile(packageInformation);
+			if(isIntact(packageInformation, apkFile))
+			{
+				return true;
+			}
+			
+			Log.w(TAG, "The cached APK for %s doesn't match the manifest, so it will be downloaded again.", packageInformation.getQualifiedName());
+			forgetVerified(apkFile);
+			apkFile.delete();
+			return false;
+		}
+	}
+	
+	/**
+	 * Downloads the APK for an update. If it has already been downloaded and
+	 * still matches the manifest, this returns immediately. If another
+	 * thread is downloading the same package, this waits for it to finish
+	 * first. If the update has a patch for the installed version, the APK is
+	 * rebuilt from the installed one instead. Once a new APK is in the
+	 * cache, the cache is trimmed to its budget.
+	 * 
+	 * @param packageInformation The update whose APK should be downloaded.
+	 * 
+	 * @param listener Receives the progress of the download and may stop it.
+	 * 				   This may be null.
+	 * 
+	 * @return The outcome of the download.
+	 */
+	public Result download(PackageInformation packageInformation, DownloadListener listener)
+	{
+		synchronized(getPackageLock(packageInformation.getQualifiedName()))
+		{
+			if(isDownloaded(packageInformation))
+			{
+				Log.i(TAG, "The package " + packageInformation.getQualifiedName() + " has already been downloaded.");
+				return Result.COMPLETE;
+			}
+			
+			// Try the much smaller patch first. If anything goes wrong with
+			// it, fall back to downloading the whole package.
+			Result result = null;
+			if(canPatch(packageInformation))
+			{
+				result = doPatch(packageInformation, listener);
+				if(result == Result.CANCELLED)
+				{
+					return result;
+				}
+				else if(result != Result.COMPLETE)
+				{
+					Log.i(TAG, "Patching " + packageInformation.getQualifiedName() + " failed, so the whole package will be downloaded.");
+					result = null;
+				}
+			}
+			
+			if(result == null)
+			{
+				result = doDownload(packageInformation, listener);
+			}
+			
+			if(result == Result.COMPLETE)
+			{
+				trimCache(packageInformation);
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * Deletes all partial downloads for packages that no longer have an
+	 * update and anything left over from patching, and then trims the cache
+	 * without removing the APKs for the current updates.
+	 * 
+	 * @param updates All of the current updates.
+	 */
+	public void deleteStaleFiles(PackageInformation[] updates)
+	{
+		Set<String> updatePackages = new HashSet<String>();
+		Set<File> updateFiles = new HashSet<File>();
+		for(PackageInformation packageInformation : updates)
+		{
+			updatePackages.add(packageInformation.getQualifiedName());
+			updateFiles.add(getApkFile(packageInformation));
+		}
+		
+		String[] files = mContext.getFilesDir().list();
+		if(files == null)
+		{
+			return;
+		}
+		
+		for(int i = 0; i < files.length; i++)
+		{
+			if(files[i].endsWith(PATCHED_EXTENSION))
+			{
+				// These are only left behind if we were killed while
+				// patching.
+				String qualifiedName = files[i].substring(0, files[i].length() - PATCHED_EXTENSION.length());
+				synchronized(getPackageLock(qualifiedName))
+				{
+					mContext.getFileStreamPath(files[i]).delete();
+				}
+			}
+			else if(files[i].endsWith(PARTIAL_EXTENSION))
+			{
+				String qualifiedName = files[i].substring(0, files[i].length() - PARTIAL_EXTENSION.length());
+				if(!updatePackages.contains(qualifiedName))
+				{
+					synchronized(getPackageLock(qualifiedName))
+					{
+						discardPartialDownload(qualifiedName);
+					}
+				}
+			}
+		}
+		
+		mCache.trim(updateFiles);
+	}
+	
+	/**
+	 * Trims the cache after an APK was added to it without removing the
+	 * APKs for the current updates or the one that was just added. If the
+	 * current updates can't be read, only the new APK is kept.
+	 * 
+	 * @param packageInformation The update whose APK was just added.
+	 */
+	private void trimCache(PackageInformation packageInformation)
+	{
+		Set<File> keep = new HashSet<File>();
+		keep.add(getApkFile(packageInformation));
+		try
+		{
+			for(PackageInformation update : Database.getInstance(mContext).getUpdates())
+			{
+				keep.add(getApkFile(update));
+			}
+		}
+		catch(SQLException e)
+		{
+			Log.e(TAG, "Unable to get the current updates while trimming the cache.", e);
+		}
+		
+		mCache.trim(keep);
+	}
+	
+	/**
+	 * Checks a cached APK against the size and hash in the manifest, if it
+	 * gave them. The package's lock must be held.
+	 * 
+	 * @param packageInformation The update the APK is for.
+	 * 
+	 * @param apkFile The cached APK.
+	 * 
+	 * @return True if the APK matches everything the manifest gave; false,
+	 * 		   otherwise.
+	 */
+	private static boolean isIntact(PackageInformation packageInformation, File apkFile)
+	{
+		long length = apkFile.length();
+		long expectedSize = packageInformation.getSize();
+		if((expectedSize != PackageInformation.UNKNOWN_SIZE) && (length != expectedSize))
+		{
+			Log.e(TAG, "The size of the cached " + packageInformation.getQualifiedName() + ", " + length + ", doesn't match the manifest's size, " + expectedSize + ".");
+			return false;
+		}
+		
+		if(packageInformation.getSha256() == null)
+		{
+			return true;
+		}
+		
+		synchronized(sVerifiedFiles)
+		{
+			Long verifiedLength = sVerifiedFiles.get(apkFile);
+			if((verifiedLength != null) && (verifiedLength.longValue() == length))
+			{
+				return true;
+			}
+		}
+		
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			updateDigest(digest, apkFile);
+			String sha256 = toHex(digest.digest());
+			if(!sha256.equals(packageInformation.getSha256()))
+			{
+				Log.e(TAG, "The SHA-256 hash of the cached " + packageInformation.getQualifiedName() + ", " + sha256 + ", doesn't match the manifest's hash, " + packageInformation.getSha256() + ".");
+				return false;
+			}
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			Log.e(TAG, "SHA-256 is not available to verify the cached package.", e);
+			return false;
+		}
+		catch(IOException e)
+		{
+			Log.e(TAG, "Could not read the cached package to verify it.", e);
+			return false;
+		}
+		
+		rememberVerified(apkFile);
+		return true;
+	}
+	
+	/**
+	 * Records that a cached APK matches its manifest's hash.
+	 * 
+	 * @param apkFile The cached APK.
+	 */
+	private static void rememberVerified(File apkFile)
+	{
+		synchronized(sVerifiedFiles)
+		{
+			sVerifiedFiles.put(apkFile, apkFile.length());
+		}
+	}
+	
+	/**
+	 * Forgets that a cached APK was verified, such as when it is replaced or
+	 * deleted.
+	 * 
+	 * @param apkFile The cached APK.
+	 */
+	private static void forgetVerified(File apkFile)
+	{
+		synchronized(sVerifiedFiles)
+		{
+			sVerifiedFiles.remove(apkFile);
+		}
+	}
+	
+	/**
+	 * Returns whether or not the update can be rebuilt from the installed
+	 * package with its patch.
+	 * 
+	 * @param packageInformation The update.
+	 * 
+	 * @return True if the update has a patch and a hash and the version the
+	 * 		   patch applies to is installed; false, otherwise.
+	 */
+	private boolean canPatch(PackageInformation packageInformation)
+	{
+		return (packageInformation.getPatchUrl() != null) &&
+			(packageInformation.getSha256() != null) &&
+			(InstalledPackagesSnapshot.getInstance(mContext).getVersionCode(packageInformation.getQualifiedName()) == packageInformation.getPatchFromVersion());
+	}
+	
+	/**
+	 * Rebuilds the update's APK by applying its patch to the installed
+	 * package. The result must match the update's hash and size before it
+	 * replaces the APK. The package's lock must be held.
+	 * 
+	 * @param packageInformation The update whose APK should be rebuilt.
+	 * 
+	 * @param listener Receives the progress of rebuilding the package and
+	 * 				   may stop it. This may be null.
+	 * 
+	 * @return The outcome of rebuilding the package.
+	 */
+	private Result doPatch(PackageInformation packageInformation, DownloadListener listener)
+	{
+		String qualifiedName = packageInformation.getQualifiedName();
+		File patchedFile = mContext.getFileStreamPath(qualifiedName + PATCHED_EXTENSION);
+		
+		File installedApk;
+		try
+		{
+			installedApk = new File(mContext.getPackageManager().getApplicationInfo(qualifiedName, 0).sourceDir);
+		}
+		catch(NameNotFoundException e)
+		{
+			Log.e(TAG, "The package to be patched is not installed: " + qualifiedName, e);
+			return Result.FAILED;
+		}
+		
+		Log.i(TAG, "Patching " + qualifiedName + " from version " + packageInformation.getPatchFromVersion() + ".");
+		
+		boolean complete = false;
+		InputStream patchStream = null;
+		FileOutputStream apkFile = null;
+		try
+		{
+			URLConnection connection = new URL(packageInformation.getPatchUrl()).openConnection();
+			patchStream = connection.getInputStream();
+			
+			// The package is made world readable, so that Android's package
+			// installer can read it.
+			apkFile = mContext.openFileOutput(patchedFile.getName(), Context.MODE_WORLD_READABLE);
+			
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			if(!ApkPatcher.apply(installedApk, patchStream, apkFile, digest, listener))
+			{
+				return Result.CANCELLED;
+			}
+			apkFile.close();
+			
+			long expectedSize = packageInformation.getSize();
+			if((expectedSize != PackageInformation.UNKNOWN_SIZE) && (patchedFile.length() != expectedSize))
+			{
+				Log.e(TAG, "The patched size of " + qualifiedName + ", " + patchedFile.length() + ", doesn't match the manifest's size, " + expectedSize + ".");
+				return Result.CORRUPT;
+			}
+			
+			String sha256 = toHex(digest.digest());
+			if(!sha256.equals(packageInformation.getSha256()))
+			{
+				Log.e(TAG, "The SHA-256 hash of the patched " + qualifiedName + ", " + sha256 + ", doesn't match the manifest's hash, " + packageInformation.getSha256() + ".");
+				return Result.CORRUPT;
+			}
+			
+			// The rebuilt package is the same as what the full download 
+			// would have been, so it is cached the same way.
+			File completeFile = getApkFile(packageInformation);
+			forgetVerified(completeFile);
+			completeFile.delete();
+			if(!patchedFile.renameTo(completeFile))
+			{
+				Log.e(TAG, "Could not rename the patched package.", new IOException("Renaming " + patchedFile.getName() + " failed."));
+				return Result.FAILED;
+			}
+			rememberVerified(completeFile);
+			
+			complete = true;
+			return Result.COMPLETE;
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			Log.e(TAG, "SHA-256 is not available to verify the patched package.", e);
+			return Result.FAILED;
+		}
+		catch(IOException e)
+		{
+			Log.e(TAG, "Error while patching " + qualifiedName, e);
+			return Result.FAILED;
+		}
+		finally
+		{
+			close(apkFile);
+			close(patchStream);
+			
+			if(!complete)
+			{
+				patchedFile.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Does the work of downloading a package. The package's lock must be
+	 * held.
+	 * 
+	 * @param packageInformation The update whose APK should be downloaded.
+	 * 
+	 * @param listener Receives the progress of the download and may stop it.
+	 * 				   This may be null.
+	 * 
+	 * @return The outcome of the download.
+	 */
+	private Result doDownload(PackageInformation packageInformation, DownloadListener listener)
+	{
+		String qualifiedName = packageInformation.getQualifiedName();
+		
+		// Get the URL for the package.
+		URL url;
+		try
+		{
+			url = new URL(packageInformation.getUrl());
+		}
+		catch(MalformedURLException e)
+		{
+			Log.e(TAG, "Malformed URL in package " + qualifiedName, e);
+			return Result.FAILED;
+		}
+		
+		if(isCancelled(listener)) return Result.CANCELLED;
+		
+		// Check if there is a partial download from an earlier attempt that
+		// can be continued. It is only trusted if it came from the same URL
+		// and we know which version of the remote file it is.
+		File partialFile = mContext.getFileStreamPath(qualifiedName + PARTIAL_EXTENSION);
+		String validator = mPreferences.getString(PREFERENCE_PARTIAL_VALIDATOR + qualifiedName, null);
+		
+		int resumeFrom = 0;
+		if(partialFile.exists() && (validator != null) && url.toString().equals(mPreferences.getString(PREFERENCE_PARTIAL_URL + qualifiedName, null)))
+		{
+			resumeFrom = (int) partialFile.length();
+		}
+		else
+		{
+			discardPartialDownload(qualifiedName);
+		}
+		
+		if(isCancelled(listener)) return Result.CANCELLED;
+		
+		// Open the connection to the package and get its length.
+		URLConnection connection;
+		int totalLength;
+		try
+		{
+			connection = openConnection(url, resumeFrom, validator);
+			
+			// The range couldn't be satisfied, which most likely means the
+			// partial file is bad, so start over.
+			if((resumeFrom > 0) && (getResponseCode(connection) == HTTP_RANGE_NOT_SATISFIABLE))
+			{
+				Log.i(TAG, "The server couldn't satisfy the range for " + qualifiedName + ", so it will be downloaded again.");
+				((HttpURLConnection) connection).disconnect();
+				discardPartialDownload(qualifiedName);
+				resumeFrom = 0;
+				connection = openConnection(url, resumeFrom, validator);
+			}
+			
+			if(resumeFrom > 0)
+			{
+				if(isResumed(connection, resumeFrom))
+				{
+					Log.i(TAG, "Resuming the download of " + qualifiedName + " from byte " + resumeFrom + ".");
+				}
+				else
+				{
+					Log.i(TAG, "The server sent all of " + qualifiedName + ", so the partial download is being discarded.");
+					resumeFrom = 0;
+				}
+			}
+			
+			int responseCode = getResponseCode(connection);
+			if((responseCode == HttpURLConnection.HTTP_NOT_FOUND) || (responseCode == HttpURLConnection.HTTP_GONE))
+			{
+				Log.e(TAG, "The file no longer exists: " + url, new IllegalStateException("The server responded with " + responseCode + "."));
+				return Result.OUT_OF_DATE;
+			}
+			
+			// Servers and proxies that send the file in chunks don't give a
+			// length. In that case, the manifest's size is used if it has
+			// one, and otherwise the length stays unknown.
+			int contentLength = connection.getContentLength();
+			if(contentLength == 0)
+			{
+				Log.e(TAG, "The file is empty: " + url, new IllegalStateException("The file no longer exists or has an invalid size."));
+				return Result.OUT_OF_DATE;
+			}
+			else if(contentLength > 0)
+			{
+				totalLength = resumeFrom + contentLength;
+			}
+			else if(packageInformation.getSize() != PackageInformation.UNKNOWN_SIZE)
+			{
+				totalLength = (int) packageInformation.getSize();
+			}
+			else
+			{
+				Log.i(TAG, "The length of " + qualifiedName + " is unknown.");
+				totalLength = UNKNOWN_LENGTH;
+			}
+		}
+		catch(IOException e)
+		{
+			Log.e(TAG, "Failed to connect to the remote file.", e);
+			return Result.FAILED;
+		}
+		
+		// If the manifest told us how big the file is, there is no point in
+		// downloading a file of any other size.
+		long expectedSize = packageInformation.getSize();
+		if((expectedSize != PackageInformation.UNKNOWN_SIZE) && (totalLength != expectedSize))
+		{
+			Log.e(TAG, "The size of " + qualifiedName + ", " + totalLength + ", doesn't match the manifest's size, " + expectedSize + ".");
+			discardPartialDownload(qualifiedName);
+			return Result.OUT_OF_DATE;
+		}
+		
+		// If the manifest gave us a hash, it is computed as the file is
+		// downloaded. When resuming, the part we already have is hashed
+		// first.
+		MessageDigest digest = null;
+		if(packageInformation.getSha256() != null)
+		{
+			try
+			{
+				digest = MessageDigest.getInstance("SHA-256");
+				if(resumeFrom > 0)
+				{
+					updateDigest(digest, partialFile);
+				}
+			}
+			catch(NoSuchAlgorithmException e)
+			{
+				Log.e(TAG, "SHA-256 is not available to verify the package.", e);
+				return Result.FAILED;
+			}
+			catch(IOException e)
+			{
+				Log.e(TAG, "Could not read the partial download to verify it.", e);
+				discardPartialDownload(qualifiedName);
+				return Result.FAILED;
+			}
+		}
+		
+		// If this is a new download, remember which version of the remote file
+		// it is so that it can be resumed if it is interrupted.
+		if(resumeFrom == 0)
+		{
+			savePartialValidator(qualifiedName, url, connection);
+		}
+		
+		InputStream dataStream = null;
+		FileOutputStream apkFile = null;
+		try
+		{
+			if(isCancelled(listener)) return Result.CANCELLED;
+			
+			// Get the input stream to begin reading the content.
+			try
+			{
+				dataStream = connection.getInputStream();
+			}
+			catch(IOException e)
+			{
+				Log.e(TAG, "Failed to open an input stream from the url: " + url, e);
+				return Result.FAILED;
+			}
+			
+			if(isCancelled(listener)) return Result.CANCELLED;
+			
+			// Create a connection to the local file that will store the APK.
+			// The package is made world readable, so that Android's package
+			// installer can read it. If we are resuming, the new data is
+			// added to the end of what is already there.
+			try
+			{
+				int mode = Context.MODE_WORLD_READABLE;
+				if(resumeFrom > 0)
+				{
+					mode |= Context.MODE_APPEND;
+				}
+				
+				apkFile = mContext.openFileOutput(partialFile.getName(), mode);
+			}
+			catch(IllegalArgumentException e)
+			{
+				Log.e(TAG, "The package filename was invalid.", e);
+				return Result.FAILED;
+			}
+			catch(IOException e)
+			{
+				Log.e(TAG, "Could not create temporary file.", e);
+				return Result.FAILED;
+			}
+			
+			if(isCancelled(listener)) return Result.CANCELLED;
+			
+			int totalDownloaded = resumeFrom;
+			try
+			{
+				int currDownloaded = 0;
+				
+				// Download the file chunk by chunk each time reporting our
+				// progress. How much is read at a time follows how quickly
+				// the data is arriving.
+				byte[] buff = new byte[MAX_BUFFER_LENGTH];
+				int bufferLength = MIN_BUFFER_LENGTH;
+				
+				long windowStart = SystemClock.uptimeMillis();
+				long windowDownloaded = 0;
+				while((currDownloaded = dataStream.read(buff, 0, bufferLength)) != -1)
+				{
+					try
+					{
+						if(isCancelled(listener)) return Result.CANCELLED;
+						
+						apkFile.write(buff, 0, currDownloaded);
+						if(digest != null)
+						{
+							digest.update(buff, 0, currDownloaded);
+						}
+						
+						totalDownloaded += currDownloaded;
+						if(listener != null)
+						{
+							listener.onProgress(totalDownloaded, totalLength);
+						}
+						
+						windowDownloaded += currDownloaded;
+						long now = SystemClock.uptimeMillis();
+						if(now - windowStart >= BUFFER_RESIZE_INTERVAL)
+						{
+							bufferLength = getBufferLength(windowDownloaded, now - windowStart);
+							windowStart = now;
+							windowDownloaded = 0;
+						}
+						
+						// This was originally being done to debug the code but
+						// is being left in as a flag that something odd has
+						// happened.
+						if((totalLength != UNKNOWN_LENGTH) && (totalLength - totalDownloaded < 0))
+						{
+							Log.e(TAG, "Downloaded more than the total size of the file.");
+						}
+					}
+					catch(IOException e)
+					{
+						Log.e(TAG, "Error while writing to the file output stream.", e);
+						return Result.FAILED;
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				Log.e(TAG, "Error while reading from the url input stream.", e);
+				return Result.FAILED;
+			}
+			
+			// The connection may have been closed before everything was sent.
+			// Keep what we have so that it can be resumed. If the length is
+			// unknown, this can't be checked.
+			if((totalLength != UNKNOWN_LENGTH) && (totalDownloaded < totalLength))
+			{
+				Log.e(TAG, "The download ended early: " + totalDownloaded + " / " + totalLength, new IOException("The connection was closed before the whole file was received."));
+				return Result.FAILED;
+			}
+		}
+		finally
+		{
+			close(apkFile);
+			close(dataStream);
+		}
+		
+		if(isCancelled(listener)) return Result.CANCELLED;
+		
+		// Reject the file before anyone tries to install it if it isn't what
+		// the manifest said it would be.
+		if((expectedSize != PackageInformation.UNKNOWN_SIZE) && (partialFile.length() != expectedSize))
+		{
+			Log.e(TAG, "The downloaded size of " + qualifiedName + ", " + partialFile.length() + ", doesn't match the manifest's size, " + expectedSize + ".");
+			discardPartialDownload(qualifiedName);
+			return Result.CORRUPT;
+		}
+		if(digest != null)
+		{
+			String sha256 = toHex(digest.digest());
+			if(!sha256.equals(packageInformation.getSha256()))
+			{
+				Log.e(TAG, "The SHA-256 hash of " + qualifiedName + ", " + sha256 + ", doesn't match the manifest's hash, " + packageInformation.getSha256() + ".");
+				discardPartialDownload(qualifiedName);
+				return Result.CORRUPT;
+			}
+		}
+		
+		// The download is complete, so it can now be added to the cache.
+		File completeFile = getApkFile(packageInformation);
+		forgetVerified(completeFile);
+		completeFile.delete();
+		if(!partialFile.renameTo(completeFile))
+		{
+			Log.e(TAG, "Could not rename the downloaded package.", new IOException("Renaming " + partialFile.getName() + " failed."));
+			discardPartialDownload(qualifiedName);
+			return Result.FAILED;
+		}
+		clearPartialValidator(qualifiedName);
+		if(digest != null)
+		{
+			rememberVerified(completeFile);
+		}
+		
+		return Result.COMPLETE;
+	}
+	
+	/**
+	 * Picks how much should be read at a time based on how quickly data has
+	 * been arriving, so that each read covers about BUFFER_READ_TIME. Slow
+	 * connections get small reads so that progress is still reported
+	 * regularly, and fast connections get large reads so that there are
+	 * fewer system calls per megabyte.
+	 * 
+	 * @param bytes The number of bytes that arrived in the last interval.
+	 * 
+	 * @param elapsed The length of the last interval in milliseconds.
+	 * 
+	 * @return A power of two between MIN_BUFFER_LENGTH and 
+	 * 		   MAX_BUFFER_LENGTH.
+	 */
+	private static int getBufferLength(long bytes, long elapsed)
+	{
+		long target = (bytes * BUFFER_READ_TIME) / elapsed;
+		
+		int bufferLength = MIN_BUFFER_LENGTH;
+		while((bufferLength < MAX_BUFFER_LENGTH) && (bufferLength < target))
+		{
+			bufferLength *= 2;
+		}
+		
+		return bufferLength;
+	}
+	
+	/**
+	 * Adds the contents of a file to a digest.
+	 * 
+	 * @param digest The digest to update.
+	 * 
+	 * @param file The file to read.
+	 * 
+	 * @throws IOException Thrown if the file cannot be read.
+	 */
+	private static void updateDigest(MessageDigest digest, File file) throws IOException
+	{
+		InputStream fileStream = new FileInputStream(file);
+		try
+		{
+			byte[] buff = new byte[MAX_CHUNK_LENGTH];
+			int currRead;
+			while((currRead = fileStream.read(buff)) != -1)
+			{
+				digest.update(buff, 0, currRead);
+			}
+		}
+		finally
+		{
+			close(fileStream);
+		}
+	}
+	
+	/**
+	 * Converts bytes to a lowercase hexadecimal string.
+	 * 
+	 * @param bytes The bytes to convert.
+	 * 
+	 * @return The bytes as a lowercase hexadecimal string.
+	 */
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes)
+		{
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+			builder.append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * Returns the lock for a package, creating it if necessary.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @return The lock for the package.
+	 */
+	private static Object getPackageLock(String qualifiedName)
+	{
+		synchronized(sPackageLocks)
+		{
+			Object lock = sPackageLocks.get(qualifiedName);
+			if(lock == null)
+			{
+				lock = new Object();
+				sPackageLocks.put(qualifiedName, lock);
+			}
+			
+			return lock;
+		}
+	}
+	
+	/**
+	 * Returns whether or not the listener has asked for the download to
+	 * stop.
+	 * 
+	 * @param listener The listener, which may be null.
+	 * 
+	 * @return True if the download should stop; false, otherwise.
+	 */
+	private static boolean isCancelled(DownloadListener listener)
+	{
+		return (listener != null) && listener.isCancelled();
+	}
+	
+	/**
+	 * Opens a connection to the URL. If there is a partial download, the
+	 * remainder of the file is requested, but only if the remote file hasn't
+	 * changed; otherwise, the server should send the whole file.
+	 * 
+	 * @param url The URL of the package.
+	 * 
+	 * @param resumeFrom The number of bytes that have already been
+	 * 					 downloaded or 0 to download the whole file.
+	 * 
+	 * @param validator The ETag or Last-Modified value of the remote file
+	 * 					when the partial download was started.
+	 * 
+	 * @return The connection to the URL.
+	 * 
+	 * @throws IOException Thrown if the connection cannot be opened.
+	 */
+	private static URLConnection openConnection(URL url, int resumeFrom, String validator) throws IOException
+	{
+		URLConnection connection = url.openConnection();
+		if(resumeFrom > 0)
+		{
+			connection.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+			connection.setRequestProperty("If-Range", validator);
+		}
+		connection.connect();
+		
+		return connection;
+	}
+	
+	/**
+	 * Returns the HTTP response code of the connection.
+	 * 
+	 * @param connection The open connection.
+	 * 
+	 * @return The HTTP response code or -1 if this isn't an HTTP connection.
+	 * 
+	 * @throws IOException Thrown if there is an error reading the response.
+	 */
+	private static int getResponseCode(URLConnection connection) throws IOException
+	{
+		if(connection instanceof HttpURLConnection)
+		{
+			return ((HttpURLConnection) connection).getResponseCode();
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Returns whether or not the server is sending only the part of the file
+	 * that was requested.
+	 * 
+	 * @param connection The open connection.
+	 * 
+	 * @param resumeFrom The first byte that was requested.
+	 * 
+	 * @return True if the server is sending the file starting at
+	 * 		   'resumeFrom'; false, if it is sending the whole file.
+	 * 
+	 * @throws IOException Thrown if there is an error reading the response.
+	 */
+	private static boolean isResumed(URLConnection connection, int resumeFrom) throws IOException
+	{
+		if(getResponseCode(connection) != HttpURLConnection.HTTP_PARTIAL)
+		{
+			return false;
+		}
+		
+		String contentRange = connection.getHeaderField("Content-Range");
+		return (contentRange != null) && contentRange.trim().startsWith("bytes " + resumeFrom + "-");
+	}
+	
+	/**
+	 * Saves the URL and the ETag or Last-Modified value of the remote file
+	 * so that a partial download can be resumed later. If the server sent
+	 * neither, the download can't safely be resumed, and nothing is saved.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @param url The URL of the package.
+	 * 
+	 * @param connection The open connection to the URL.
+	 */
+	private void savePartialValidator(String qualifiedName, URL url, URLConnection connection)
+	{
+		// Weak ETags cannot be used with If-Range.
+		String validator = connection.getHeaderField("ETag");
+		if((validator == null) || validator.startsWith("W/"))
+		{
+			validator = connection.getHeaderField("Last-Modified");
+		}
+		
+		if(validator == null)
+		{
+			clearPartialValidator(qualifiedName);
+		}
+		else
+		{
+			SharedPreferences.Editor editor = mPreferences.edit();
+			editor.putString(PREFERENCE_PARTIAL_URL + qualifiedName, url.toString());
+			editor.putString(PREFERENCE_PARTIAL_VALIDATOR + qualifiedName, validator);
+			editor.commit();
+		}
+	}
+	
+	/**
+	 * Deletes any partial download of a package and forgets which version of
+	 * the remote file it was.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 */
+	private void discardPartialDownload(String qualifiedName)
+	{
+		mContext.getFileStreamPath(qualifiedName + PARTIAL_EXTENSION).delete();
+		clearPartialValidator(qualifiedName);
+	}
+	
+	/**
+	 * Forgets the URL and version of the remote file for a package's partial
+	 * download.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 */
+	private void clearPartialValidator(String qualifiedName)
+	{
+		SharedPreferences.Editor editor = mPreferences.edit();
+		editor.remove(PREFERENCE_PARTIAL_URL + qualifiedName);
+		editor.remove(PREFERENCE_PARTIAL_VALIDATOR + qualifiedName);
+		editor.commit();
+	}
+	
+	/**
+	 * Closes a stream, logging but otherwise ignoring any error.
+	 * 
+	 * @param closeable The stream to close. If it is null, nothing is done.
+	 */
+	private static void close(Closeable closeable)
+	{
+		if(closeable == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			closeable.close();
+		}
+		catch(IOException e)
+		{
+			Log.e(TAG, "Failed to close a download stream.", e);
+		}
+	}
+}
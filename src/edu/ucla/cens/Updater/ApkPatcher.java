@@ -0,0 +1,169 @@
+package edu.ucla.cens.Updater;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a new version of a package from the version that is installed
+ * and a patch from the server.
+ * 
+ * A patch is a gzip-compressed stream that starts with a header followed by
+ * a list of operations. Every number is big-endian.
+ * 
+ * Header:
+ *  - int: the magic number 0x43505431 ("CPT1").
+ *  - long: the size of the new package.
+ * 
+ * Operations, each starting with a one byte code:
+ *  - 0, end: the patch is complete.
+ *  - 1, copy: a long offset and an int length. That many bytes are copied
+ *    from the installed package starting at the offset.
+ *  - 2, insert: an int length followed by that many bytes, which are copied
+ *    from the patch.
+ * 
+ * @version 1.0
+ */
+public class ApkPatcher
+{
+	private static final int MAGIC = 0x43505431;
+	
+	private static final int OPERATION_END = 0;
+	private static final int OPERATION_COPY = 1;
+	private static final int OPERATION_INSERT = 2;
+	
+	private static final int MAX_CHUNK_LENGTH = 4096;
+	
+	/**
+	 * This class only has static methods.
+	 */
+	private ApkPatcher()
+	{
+	}
+	
+	/**
+	 * Applies a patch to the installed package and writes the new package.
+	 * 
+	 * @param installedApk The installed package the patch applies to.
+	 * 
+	 * @param patch The patch, as sent by the server.
+	 * 
+	 * @param newApk Where the new package is written.
+	 * 
+	 * @param digest Every byte of the new package is added to this digest so
+	 * 				 that the caller can verify it.
+	 * 
+	 * @param listener Receives the progress of rebuilding the package and
+	 * 				   may stop it. This may be null.
+	 * 
+	 * @return True if the whole package was written; false if the listener
+	 * 		   stopped it.
+	 * 
+	 * @throws IOException Thrown if the patch is invalid, doesn't match the
+	 * 					   installed package, or any of the files cannot be
+	 * 					   read or written.
+	 */
+	public static boolean apply(File installedApk, InputStream patch, OutputStream newApk, MessageDigest digest, ApkDownloader.DownloadListener listener) throws IOException
+	{
+		DataInputStream patchStream = new DataInputStream(new GZIPInputStream(patch));
+		RandomAccessFile oldApk = new RandomAccessFile(installedApk, "r");
+		try
+		{
+			if(patchStream.readInt() != MAGIC)
+			{
+				throw new IOException("The patch has an unknown format.");
+			}
+			
+			long newSize = patchStream.readLong();
+			if((newSize <= 0) || (newSize > Integer.MAX_VALUE))
+			{
+				throw new IOException("The patch has an invalid size: " + newSize);
+			}
+			
+			long oldSize = oldApk.length();
+			long totalWritten = 0;
+			byte[] buff = new byte[MAX_CHUNK_LENGTH];
+			while(true)
+			{
+				if((listener != null) && listener.isCancelled())
+				{
+					return false;
+				}
+				
+				int operation = patchStream.readUnsignedByte();
+				if(operation == OPERATION_END)
+				{
+					break;
+				}
+				
+				long offset = 0;
+				if(operation == OPERATION_COPY)
+				{
+					offset = patchStream.readLong();
+				}
+				else if(operation != OPERATION_INSERT)
+				{
+					throw new IOException("The patch has an unknown operation: " + operation);
+				}
+				
+				int length = patchStream.readInt();
+				if((length < 0) || (totalWritten + length > newSize))
+				{
+					throw new IOException("The patch has an invalid length: " + length);
+				}
+				
+				if(operation == OPERATION_COPY)
+				{
+					if((offset < 0) || (offset + length > oldSize))
+					{
+						throw new IOException("The patch doesn't match the installed package.");
+					}
+					oldApk.seek(offset);
+				}
+				
+				// Copy the bytes chunk by chunk from the installed package or
+				// the patch.
+				int remaining = length;
+				while(remaining > 0)
+				{
+					int currLength = Math.min(remaining, buff.length);
+					if(operation == OPERATION_COPY)
+					{
+						oldApk.readFully(buff, 0, currLength);
+					}
+					else
+					{
+						patchStream.readFully(buff, 0, currLength);
+					}
+					
+					newApk.write(buff, 0, currLength);
+					digest.update(buff, 0, currLength);
+					remaining -= currLength;
+				}
+				
+				totalWritten += length;
+				if(listener != null)
+				{
+					listener.onProgress((int) totalWritten, (int) newSize);
+				}
+			}
+			
+			if(totalWritten != newSize)
+			{
+				throw new IOException("The patch ended early: " + totalWritten + " / " + newSize);
+			}
+			
+			return true;
+		}
+		finally
+		{
+			oldApk.close();
+			patchStream.close();
+		}
+	}
+}
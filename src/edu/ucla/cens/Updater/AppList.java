@@ -73,7 +73,7 @@ public class AppList extends TabActivity implements View.OnClickListener, Dialog
 		Context mContext;
 		
 		/**
-		 * Needs an application context to create a new Updater object.
+		 * Needs an application context to run the update.
 		 * 
 		 * @param context The Context in which this update is being done.
 		 */
@@ -83,14 +83,13 @@ public class AppList extends TabActivity implements View.OnClickListener, Dialog
 		}
 		
 		/**
-		 * Creates a new Updater object and does an update. If any updates are
-		 * found or are pending, it will refresh the updates list. 
+		 * Does an update, or joins the one that is already running. If any 
+		 * updates are found or are pending, it will refresh the updates list. 
 		 */
 		@Override
 		public void run()
 		{
-			Updater updater = new Updater(mContext);
-			if(updater.doUpdate())
+			if(UpdateScheduler.checkForUpdates(mContext))
 			{
 				messageHandler.sendMessage(messageHandler.obtainMessage(MESSAGE_UPDATE_LISTS));
 			}
@@ -189,7 +188,7 @@ public class AppList extends TabActivity implements View.OnClickListener, Dialog
 		 */
 		if(v == installButton)
 		{
-			Database db = new Database(this);
+			Database db = Database.getInstance(this);
 			ListIterator<PackageDescription> currPackage = newPackages.listIterator();
 			while(currPackage.hasNext())
 			{
@@ -222,7 +221,7 @@ public class AppList extends TabActivity implements View.OnClickListener, Dialog
 		if(di == stopManagingDialog)
 		{
 			// Remove the app from being tracked in the database.
-			Database db = new Database(this);
+			Database db = Database.getInstance(this);
 			db.stopManaging(mManagedPackages[uninstallIndex].getQualifiedName());
 			
 			updateLists();
@@ -450,32 +449,36 @@ public class AppList extends TabActivity implements View.OnClickListener, Dialog
 	private void updateUpdatesList()
 	{
 		// TODO: Add removable apps as well
-		Database db = new Database(this);
+		Database db = Database.getInstance(this);
 		
 		int numPackages = 0;
-		mUpdatePackages = db.getUpdates();
-		if(mUpdatePackages == null)
+		PackageInformation[] updates = db.getUpdates();
+		if(updates == null)
 		{
 			Log.e(TAG, "Unable to get packages to be installed.");
-			mUpdatePackages = new PackageDescription[0];
+			updates = new PackageInformation[0];
 		}
 		else
 		{
-			numPackages = mUpdatePackages.length;
+			numPackages = updates.length;
 		}
+		mUpdatePackages = updates;
 		listOfUpdateableApps.setAdapter(new ArrayAdapter<PackageDescription>(this, R.layout.checked_list_item, mUpdatePackages));
 		
+		// The update status comes back with each update, and the managed
+		// check is answered from memory, so this loop doesn't query the
+		// database for each row.
 		boolean buttonEnabled = false;
 		for(int i = 0; i < numPackages; i++)
 		{
-			if(db.isManaged(mUpdatePackages[i].getQualifiedName()))
+			if(db.isManaged(updates[i].getQualifiedName()))
 			{
 				buttonEnabled = true;
 				listOfUpdateableApps.setItemChecked(i, true);
 				
-				if(!db.getUpdateStatus(mUpdatePackages[i].getQualifiedName()))
+				if(!updates[i].getToBeApplied())
 				{
-					db.changeUpdateStatus(mUpdatePackages[i].getQualifiedName(), true);
+					db.changeUpdateStatus(updates[i].getQualifiedName(), true);
 				}
 			}
 		}
@@ -491,7 +494,7 @@ public class AppList extends TabActivity implements View.OnClickListener, Dialog
 	 */
 	private void updateManagedList()
 	{
-		Database db = new Database(this);
+		Database db = Database.getInstance(this);
 		
 		LinkedList<PackageDescription> managedPackages = db.getMangedDescriptions();
 		Object[] oManagedPackages = managedPackages.toArray();
@@ -526,7 +529,7 @@ public class AppList extends TabActivity implements View.OnClickListener, Dialog
 	 */
 	private void listOfUpdateableAppsClick(CheckedTextView view, int position)
 	{
-		Database db = new Database(this);
+		Database db = Database.getInstance(this);
 		db.changeUpdateStatus(mUpdatePackages[position].getQualifiedName(), !view.isChecked());
 		
 		int numPackages = listOfUpdateableApps.getCount();
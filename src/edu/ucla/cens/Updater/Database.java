@@ -1,8 +1,12 @@
 package edu.ucla.cens.Updater;
 
 import java.security.InvalidParameterException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -10,8 +14,12 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import edu.ucla.cens.Updater.PackageInformation.Action;
+import edu.ucla.cens.Updater.PackageInformation.InstallState;
 import edu.ucla.cens.systemlog.Log;
 
 /**
@@ -32,7 +40,9 @@ public class Database
 	
 	// Database constants.
 	private static final String DB_NAME = "Updater";
-	private static final int DB_VERSION = 1;
+	private static final int DB_VERSION = 4;
+	
+	private static final int VERSION_CODE_HONEYCOMB = 11;
 	
 	// Table - Packages to be installed
 	private static final String PACKAGES_TO_BE_INSTALLED = "packages_to_be_installed";
@@ -69,6 +79,28 @@ public class Database
 	 * Indicates whether or not the update should be applied.
 	 */
 	public static final String TO_BE_APPLIED = "to_be_applied";
+	/**
+	 * The SHA-256 hash the downloaded package must have, if it is known.
+	 */
+	public static final String SHA256 = "sha256";
+	/**
+	 * The size in bytes the downloaded package must have, if it is known.
+	 */
+	public static final String SIZE = "size";
+	/**
+	 * The version of the installed package to which the update's patch
+	 * applies, if it has one.
+	 */
+	public static final String PATCH_FROM_VERSION = "patch_from_version";
+	/**
+	 * The URL from which the update's patch can be downloaded, if it has
+	 * one.
+	 */
+	public static final String PATCH_URL = "patch_url";
+	/**
+	 * How far along the installation of the update is.
+	 */
+	public static final String INSTALL_STATE = "install_state";
 	
 	// Table - Managed Packages
 	private static final String MANAGED_PACKAGES = "managed_packages";
@@ -76,9 +108,18 @@ public class Database
 	// Table - Packages to be Uninstalled
 	private static final String PACKAGES_TO_BE_UNINSTALLED = "packages_to_be_uninstalled";
 	
+	// SQLite's default limit on the number of arguments in one statement.
+	private static final int MAX_BOUND_ARGUMENTS = 999;
+	
 	private static final int ACTION_CLEAN = 1;
 	private static final int ACTION_UPDATE = 2;
 	
+	private static final int INSTALL_STATE_QUEUED = 0;
+	private static final int INSTALL_STATE_DOWNLOADING = 1;
+	private static final int INSTALL_STATE_DOWNLOADED = 2;
+	private static final int INSTALL_STATE_AWAITING_INSTALL = 3;
+	private static final int INSTALL_STATE_VERIFIED = 4;
+	
 	/**
 	 * The name of the preferences file used by Android to lookup our
 	 * preferences.
@@ -136,7 +177,12 @@ public class Database
 					+ APP_VERSION + " INTEGER NOT NULL, "
 					+ URL + " STRING NOT NULL, "
 					+ ACTION + " INTEGER NOT NULL, "
-					+ TO_BE_APPLIED + " INTEGER NOT NULL"
+					+ TO_BE_APPLIED + " INTEGER NOT NULL, "
+					+ SHA256 + " STRING, "
+					+ SIZE + " INTEGER NOT NULL DEFAULT " + PackageInformation.UNKNOWN_SIZE + ", "
+					+ PATCH_FROM_VERSION + " INTEGER NOT NULL DEFAULT " + PackageInformation.NO_PATCH + ", "
+					+ PATCH_URL + " STRING, "
+					+ INSTALL_STATE + " INTEGER NOT NULL DEFAULT " + INSTALL_STATE_QUEUED
 					+ ");");
 			
 			db.execSQL("CREATE TABLE " + MANAGED_PACKAGES + " ("
@@ -152,61 +198,130 @@ public class Database
 		}
 		
 		/**
-		 * Given that this is the initial version of the application, this
-		 * will simply destroy any existing tables and create all new ones.
+		 * Upgrades the tables from an older version to the current version
+		 * without losing any of the data in them.
 		 * 
-		 * In the future this should handle upgrading any older version of the
-		 * tables to the current version. 
+		 * Version 2 added the hash and size of updates, version 3 added their
+		 * patches, and version 4 added how far along their installation is.
 		 */
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
 		{
 			Log.i(TAG, "Upgrading database from " + oldVersion + " to " + newVersion + ".");
 			
-			db.execSQL("DROP TABLE IF EXISTS " + PACKAGES_TO_BE_INSTALLED + ";");
-			db.execSQL("DROP TABLE IF EXISTS " + MANAGED_PACKAGES + ";");
-			db.execSQL("DROP TABLE IF EXISTS " + PACKAGES_TO_BE_UNINSTALLED + ";");
-			onCreate(db);
+			if(oldVersion < 2)
+			{
+				db.execSQL("ALTER TABLE " + PACKAGES_TO_BE_INSTALLED + " ADD COLUMN " + SHA256 + " STRING;");
+				db.execSQL("ALTER TABLE " + PACKAGES_TO_BE_INSTALLED + " ADD COLUMN " + SIZE + " INTEGER NOT NULL DEFAULT " + PackageInformation.UNKNOWN_SIZE + ";");
+			}
+			
+			if(oldVersion < 3)
+			{
+				db.execSQL("ALTER TABLE " + PACKAGES_TO_BE_INSTALLED + " ADD COLUMN " + PATCH_FROM_VERSION + " INTEGER NOT NULL DEFAULT " + PackageInformation.NO_PATCH + ";");
+				db.execSQL("ALTER TABLE " + PACKAGES_TO_BE_INSTALLED + " ADD COLUMN " + PATCH_URL + " STRING;");
+			}
+			
+			if(oldVersion < 4)
+			{
+				db.execSQL("ALTER TABLE " + PACKAGES_TO_BE_INSTALLED + " ADD COLUMN " + INSTALL_STATE + " INTEGER NOT NULL DEFAULT " + INSTALL_STATE_QUEUED + ";");
+			}
 		}
 	}
-	private OpenHelper mOpenHelper;
+	
+	// The one instance of this class for the whole process.
+	private static Database sInstance = null;
+	
+	private final OpenHelper mOpenHelper;
+	
+	// The one connection to the database which is opened when it is first
+	// needed and then kept open for the life of the process.
+	private SQLiteDatabase mDatabase = null;
 	
 	// Used to synchronize all access to the "Packages to be installed" table.
-	private static ReentrantLock packagesToBeInstalledTableLock = null;
+	// Any number of readers may access the table at once, but writers have
+	// exclusive access.
+	private final ReentrantReadWriteLock packagesToBeInstalledTableLock;
 	
 	// Used to synchronize all access to the "Manged packages" table.
-	private static ReentrantLock managedPackagesTableLock = null;
+	private final ReentrantReadWriteLock managedPackagesTableLock;
 	
 	// Used to synchronize all access to the "Packages to be uninstalled" 
 	// table.
-	private static ReentrantLock packagesToBeUninstalledTableLock = null;
+	private final ReentrantReadWriteLock packagesToBeUninstalledTableLock;
 	
-	private Context mContext;
+	// The set of managed packages kept in step with the managed packages
+	// table. It is guarded by the managed packages table lock, and the
+	// monitor only guards its initial loading.
+	private Set<String> mManagedCache = null;
+	private final Object mManagedCacheLock = new Object();
+	
+	private final Context mContext;
 	
 	/**
-	 * Prepares the databases for access.
+	 * Prepares the databases for access. There is only one instance for the
+	 * process which is retrieved with {@link #getInstance(Context)}.
 	 * 
 	 * @param context The Context in which this application is running.
 	 */
-	public Database(Context context)
+	private Database(Context context)
 	{
 		mContext = context;
 		mOpenHelper = new OpenHelper(context);
 		
-		if(packagesToBeInstalledTableLock == null)
+		packagesToBeInstalledTableLock = new ReentrantReadWriteLock();
+		managedPackagesTableLock = new ReentrantReadWriteLock();
+		packagesToBeUninstalledTableLock = new ReentrantReadWriteLock();
+	}
+	
+	/**
+	 * Returns the one instance of the database for this process, creating it
+	 * if necessary.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @return The database.
+	 */
+	public static synchronized Database getInstance(Context context)
+	{
+		if(sInstance == null)
 		{
-			packagesToBeInstalledTableLock = new ReentrantLock();
+			sInstance = new Database(context.getApplicationContext());
 		}
 		
-		if(managedPackagesTableLock == null)
+		return sInstance;
+	}
+	
+	/**
+	 * Returns the shared connection to the database, opening it if this is
+	 * the first time it is needed. On systems that support it, the database
+	 * uses write-ahead logging so that reads aren't blocked by writes.
+	 * 
+	 * @return The open, writable database.
+	 * 
+	 * @throws SQLException Thrown if the database cannot be opened.
+	 */
+	private synchronized SQLiteDatabase getDatabase() throws SQLException
+	{
+		if((mDatabase == null) || (!mDatabase.isOpen()))
 		{
-			managedPackagesTableLock = new ReentrantLock();
+			mDatabase = mOpenHelper.getWritableDatabase();
+			
+			// Write-ahead logging was added in Honeycomb, after the version
+			// we build against, so it must be enabled reflectively.
+			if(Build.VERSION.SDK_INT >= VERSION_CODE_HONEYCOMB)
+			{
+				try
+				{
+					SQLiteDatabase.class.getMethod("enableWriteAheadLogging").invoke(mDatabase);
+				}
+				catch(Exception e)
+				{
+					Log.e(TAG, "Unable to enable write-ahead logging.", e);
+				}
+			}
 		}
 		
-		if(packagesToBeUninstalledTableLock == null)
-		{
-			packagesToBeUninstalledTableLock = new ReentrantLock();
-		}
+		return mDatabase;
 	}
 	
 	/**
@@ -225,9 +340,9 @@ public class Database
 	 */
 	public void addUpdate(PackageInformation packageInfo) throws SQLException
 	{
-		packagesToBeInstalledTableLock.lock();
+		packagesToBeInstalledTableLock.writeLock().lock();
 		
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {ID, PACKAGE}, PACKAGE + "=?", new String[] {packageInfo.getQualifiedName()}, null, null, null);
@@ -254,6 +369,10 @@ public class Database
 			cv.put(URL, packageInfo.getUrl());
 			cv.put(ACTION, translateAction(packageInfo.getAction()));
 			cv.put(TO_BE_APPLIED, preferences.getBoolean(PREFERENCES_MANAGED, false) ? 1 : 0);
+			cv.put(SHA256, packageInfo.getSha256());
+			cv.put(SIZE, packageInfo.getSize());
+			cv.put(PATCH_FROM_VERSION, packageInfo.getPatchFromVersion());
+			cv.put(PATCH_URL, packageInfo.getPatchUrl());
 			if(db.insert(PACKAGES_TO_BE_INSTALLED, null, cv) == -1)
 			{
 				throw new SQLException("Failed to insert new entry into the database.");
@@ -261,8 +380,7 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			packagesToBeInstalledTableLock.unlock();
+			packagesToBeInstalledTableLock.writeLock().unlock();
 		}
 	}
 	
@@ -284,18 +402,17 @@ public class Database
 		{
 			throw new InvalidParameterException("'qualifiedName' is null.");
 		}
-		packagesToBeInstalledTableLock.lock();
+		packagesToBeInstalledTableLock.writeLock().lock();
 		
 		int result = -1;
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			result = db.delete(PACKAGES_TO_BE_INSTALLED, PACKAGE + "=?", new String[] {qualifiedName});
 		}
 		finally
 		{
-			db.close();
-			packagesToBeInstalledTableLock.unlock();
+			packagesToBeInstalledTableLock.writeLock().unlock();
 		}
 		return result;
 	}
@@ -310,22 +427,183 @@ public class Database
 	 */
 	public int removeAllUpdates()
 	{
-		packagesToBeInstalledTableLock.lock();
+		packagesToBeInstalledTableLock.writeLock().lock();
 		
 		int result = -1;
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			result = db.delete(PACKAGES_TO_BE_INSTALLED, null, null);
 		}
 		finally
 		{
-			db.close();
-			packagesToBeInstalledTableLock.unlock();
+			packagesToBeInstalledTableLock.writeLock().unlock();
 		}
 		return result;
 	}
 	
+	/**
+	 * Applies all of the changes that reconciling a manifest produced in a
+	 * single transaction. Either all of the changes are applied or, if any
+	 * of them fails, none of them are.
+	 * 
+	 * The changes are applied in the following order: all updates are
+	 * cleared if requested, updates are removed, packages begin being
+	 * managed, updates are added or replaced, and, finally, packages that
+	 * are no longer managed are marked as needing to be removed and have
+	 * their updates removed in bulk.
+	 * 
+	 * @param diff The changes to apply.
+	 * 
+	 * @throws SQLException Thrown if there are any serious issues within the
+	 * 						database. If this is thrown, none of the changes
+	 * 						were applied.
+	 */
+	public void applyManifest(ManifestDiff diff) throws SQLException
+	{
+		if(diff.isEmpty())
+		{
+			return;
+		}
+		
+		// Always lock the tables in the same order to prevent deadlocks.
+		packagesToBeInstalledTableLock.writeLock().lock();
+		managedPackagesTableLock.writeLock().lock();
+		packagesToBeUninstalledTableLock.writeLock().lock();
+		
+		SQLiteDatabase db = getDatabase();
+		SQLiteStatement removeUpdate = null;
+		SQLiteStatement getInstallState = null;
+		SQLiteStatement addUpdate = null;
+		SQLiteStatement addManaged = null;
+		try
+		{
+			db.beginTransaction();
+			try
+			{
+				if(diff.getClearUpdates())
+				{
+					db.delete(PACKAGES_TO_BE_INSTALLED, null, null);
+				}
+				
+				removeUpdate = db.compileStatement(
+						"DELETE FROM " + PACKAGES_TO_BE_INSTALLED + 
+						" WHERE " + PACKAGE + "=?");
+				for(String qualifiedName : diff.getUpdatesToRemove())
+				{
+					removeUpdate.bindString(1, qualifiedName);
+					removeUpdate.execute();
+				}
+				
+				if(!diff.getManagedToAdd().isEmpty())
+				{
+					addManaged = db.compileStatement(
+							"INSERT OR IGNORE INTO " + MANAGED_PACKAGES + 
+							" (" + PACKAGE + ", " + APP_NAME + ") VALUES (?, ?)");
+					for(PackageDescription packageDescription : diff.getManagedToAdd())
+					{
+						addManaged.bindString(1, packageDescription.getQualifiedName());
+						addManaged.bindString(2, packageDescription.getDisplayName());
+						addManaged.execute();
+					}
+				}
+				
+				if(!diff.getUpdatesToAdd().isEmpty())
+				{
+					SharedPreferences preferences = mContext.getSharedPreferences(PACKAGE_PREFERENCES, Context.MODE_PRIVATE);
+					long toBeApplied = preferences.getBoolean(PREFERENCES_MANAGED, false) ? 1 : 0;
+					
+					getInstallState = db.compileStatement(
+							"SELECT " + INSTALL_STATE + " FROM " + PACKAGES_TO_BE_INSTALLED + 
+							" WHERE " + PACKAGE + "=? AND " + APP_VERSION + "=?");
+					addUpdate = db.compileStatement(
+							"INSERT INTO " + PACKAGES_TO_BE_INSTALLED + 
+							" (" + PACKAGE + ", " + RELEASE_NAME + ", " + APP_NAME + ", " + APP_VERSION + ", " + URL + ", " + ACTION + ", " + TO_BE_APPLIED + ", " + SHA256 + ", " + SIZE + ", " + PATCH_FROM_VERSION + ", " + PATCH_URL + ", " + INSTALL_STATE + ")" + 
+							" VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+					for(PackageInformation packageInfo : diff.getUpdatesToAdd())
+					{
+						// The same version of an update is listed in every
+						// manifest, so how far along its installation is must
+						// survive it being replaced.
+						long installState;
+						getInstallState.bindString(1, packageInfo.getQualifiedName());
+						getInstallState.bindLong(2, packageInfo.getVersion());
+						try
+						{
+							installState = getInstallState.simpleQueryForLong();
+						}
+						catch(SQLiteDoneException e)
+						{
+							installState = INSTALL_STATE_QUEUED;
+						}
+						
+						removeUpdate.bindString(1, packageInfo.getQualifiedName());
+						removeUpdate.execute();
+						
+						addUpdate.bindString(1, packageInfo.getQualifiedName());
+						addUpdate.bindString(2, packageInfo.getReleaseName());
+						addUpdate.bindString(3, packageInfo.getDisplayName());
+						addUpdate.bindLong(4, packageInfo.getVersion());
+						addUpdate.bindString(5, packageInfo.getUrl());
+						addUpdate.bindLong(6, translateAction(packageInfo.getAction()));
+						addUpdate.bindLong(7, toBeApplied);
+						if(packageInfo.getSha256() == null)
+						{
+							addUpdate.bindNull(8);
+						}
+						else
+						{
+							addUpdate.bindString(8, packageInfo.getSha256());
+						}
+						addUpdate.bindLong(9, packageInfo.getSize());
+						addUpdate.bindLong(10, packageInfo.getPatchFromVersion());
+						if(packageInfo.getPatchUrl() == null)
+						{
+							addUpdate.bindNull(11);
+						}
+						else
+						{
+							addUpdate.bindString(11, packageInfo.getPatchUrl());
+						}
+						addUpdate.bindLong(12, installState);
+						if(addUpdate.executeInsert() == -1)
+						{
+							throw new SQLException("Failed to insert new entry into the database.");
+						}
+					}
+				}
+				
+				stopManaging(db, diff.getManagedToStop());
+				
+				db.setTransactionSuccessful();
+			}
+			finally
+			{
+				db.endTransaction();
+			}
+			
+			// The transaction was committed, so the cache must now reflect
+			// it.
+			Set<String> managedCache = getManagedCache(db);
+			for(PackageDescription packageDescription : diff.getManagedToAdd())
+			{
+				managedCache.add(packageDescription.getQualifiedName());
+			}
+			managedCache.removeAll(diff.getManagedToStop());
+		}
+		finally
+		{
+			closeStatement(removeUpdate);
+			closeStatement(getInstallState);
+			closeStatement(addUpdate);
+			closeStatement(addManaged);
+			
+			packagesToBeUninstalledTableLock.writeLock().unlock();
+			managedPackagesTableLock.writeLock().unlock();
+			packagesToBeInstalledTableLock.writeLock().unlock();
+		}
+	}
+	
 	/**
 	 * Returns all updates for the packages that are being managed as well as
 	 * available packages that may not be currently be managed but can be
@@ -337,13 +615,13 @@ public class Database
 	 */
 	public PackageInformation[] getUpdates() throws SQLException
 	{
-		packagesToBeInstalledTableLock.lock();
+		packagesToBeInstalledTableLock.readLock().lock();
 		
 		PackageInformation[] result = null;
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
-			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {PACKAGE, RELEASE_NAME, APP_NAME, APP_VERSION, URL, ACTION, TO_BE_APPLIED}, null, null, null, null, null);
+			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {PACKAGE, RELEASE_NAME, APP_NAME, APP_VERSION, URL, ACTION, TO_BE_APPLIED, SHA256, SIZE, PATCH_FROM_VERSION, PATCH_URL, INSTALL_STATE}, null, null, null, null, null);
 			if(c == null)
 			{
 				throw new SQLException("Couldn't read the packages to be installed database.");
@@ -354,8 +632,13 @@ public class Database
 			result = new PackageInformation[numRecords];
 			for(int i = 0; i < numRecords; i++)
 			{
-				result[i] = new PackageInformation(c.getString(0), c.getString(1), c.getString(2), c.getInt(3), c.getString(4), translateAction(c.getInt(5)));
+				result[i] = new PackageInformation(c.getString(0), c.getString(1), c.getString(2), c.getInt(3), c.getString(4), translateAction(c.getInt(5)), c.getString(7), c.getLong(8));
 				result[i].setToBeApplied(c.getInt(6) == 1);
+				result[i].setInstallState(translateInstallState(c.getInt(11)));
+				if(!c.isNull(10))
+				{
+					result[i].setPatch(c.getInt(9), c.getString(10));
+				}
 				c.moveToNext();
 			}
 			
@@ -363,8 +646,7 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			packagesToBeInstalledTableLock.unlock();
+			packagesToBeInstalledTableLock.readLock().unlock();
 		}
 		return result;
 	}
@@ -388,13 +670,13 @@ public class Database
 	 */
 	public PackageInformation hasUpdate(String qualifiedName) throws SQLException
 	{
-		packagesToBeInstalledTableLock.lock();
+		packagesToBeInstalledTableLock.writeLock().lock();
 		
 		PackageInformation result = null;
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
-			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {ID, PACKAGE, RELEASE_NAME, APP_NAME, APP_VERSION, URL, ACTION, TO_BE_APPLIED}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
+			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {ID, PACKAGE, RELEASE_NAME, APP_NAME, APP_VERSION, URL, ACTION, TO_BE_APPLIED, SHA256, SIZE, PATCH_FROM_VERSION, PATCH_URL, INSTALL_STATE}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
 			if(c == null)
 			{
 				throw new SQLException("Cannot query the updates table.");
@@ -410,15 +692,19 @@ public class Database
 					c.moveToNext();
 				}
 				
-				result = new PackageInformation(c.getString(1), c.getString(2), c.getString(3), c.getInt(4), c.getString(5), translateAction(c.getInt(6)));
+				result = new PackageInformation(c.getString(1), c.getString(2), c.getString(3), c.getInt(4), c.getString(5), translateAction(c.getInt(6)), c.getString(8), c.getLong(9));
 				result.setToBeApplied((c.getInt(7) == 0) ? false : true);
+				result.setInstallState(translateInstallState(c.getInt(12)));
+				if(!c.isNull(11))
+				{
+					result.setPatch(c.getInt(10), c.getString(11));
+				}
 			}
 			c.close();
 		}
 		finally
 		{
-			db.close();
-			packagesToBeInstalledTableLock.unlock();
+			packagesToBeInstalledTableLock.writeLock().unlock();
 		}
 		
 		return result;
@@ -437,9 +723,9 @@ public class Database
 	 */
 	public void changeUpdateStatus(String qualifiedName, boolean toBeApplied) throws SQLException
 	{
-		packagesToBeInstalledTableLock.lock();
+		packagesToBeInstalledTableLock.writeLock().lock();
 		
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {ID, PACKAGE, TO_BE_APPLIED}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
@@ -460,8 +746,7 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			packagesToBeInstalledTableLock.unlock();
+			packagesToBeInstalledTableLock.writeLock().unlock();
 		}
 	}
 	
@@ -478,10 +763,10 @@ public class Database
 	 */
 	public boolean getUpdateStatus(String qualifiedName) throws SQLException
 	{
-		packagesToBeInstalledTableLock.lock();
+		packagesToBeInstalledTableLock.readLock().lock();
 		
 		boolean result = false;
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {ID, PACKAGE, TO_BE_APPLIED}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
@@ -499,47 +784,114 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			packagesToBeInstalledTableLock.unlock();
+			packagesToBeInstalledTableLock.readLock().unlock();
 		}
 		
 		return result;
 	}
 	
 	/**
-	 * Adds a package to the list of packages we are managing.
+	 * Returns the version of the update for a package. Unlike hasUpdate(),
+	 * this only reads the updates table and never prunes it, so it can be
+	 * used while other threads are working with the table.
 	 * 
-	 * @param qualifiedName The qualified name of the package in the form
-	 * 						qualified.name.like.this.
+	 * @param qualifiedName The qualified name of the package in question.
+	 * 
+	 * @return Returns the version of the update for the package or -1 if the
+	 * 		   package doesn't have an update.
 	 * 
 	 * @throws SQLException Thrown if there is an issue querying the database.
 	 */
-	public void addManaged(String qualifiedName, String appName) throws SQLException
+	public int getUpdateVersion(String qualifiedName) throws SQLException
 	{
-		managedPackagesTableLock.lock();
+		packagesToBeInstalledTableLock.readLock().lock();
 		
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int result = -1;
+		SQLiteDatabase db = getDatabase();
 		try
 		{
-			Cursor c = db.query(MANAGED_PACKAGES, new String[] {ID, PACKAGE}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
+			Cursor c = db.query(PACKAGES_TO_BE_INSTALLED, new String[] {ID, PACKAGE, APP_VERSION}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
 			if(c == null)
 			{
-				throw new SQLException("Cannot query managed packages table.");
+				throw new SQLException("Cannot query the updates table.");
 			}
 			
-			if(c.getCount() == 0)
+			// Like hasUpdate(), the last of any duplicates is the one that
+			// counts.
+			if(c.moveToLast())
+			{
+				result = c.getInt(2);
+			}
+			c.close();
+		}
+		finally
+		{
+			packagesToBeInstalledTableLock.readLock().unlock();
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Records how far along the installation of an update is so that it can
+	 * be picked up where it was left off, even if this process is killed.
+	 * 
+	 * @param qualifiedName The qualified name of the package whose update
+	 * 						this is.
+	 * 
+	 * @param installState How far along the installation of the update is.
+	 * 
+	 * @throws SQLException Thrown only when the database is inaccessible.
+	 */
+	public void setInstallState(String qualifiedName, InstallState installState) throws SQLException
+	{
+		packagesToBeInstalledTableLock.writeLock().lock();
+		
+		SQLiteDatabase db = getDatabase();
+		try
+		{
+			ContentValues cv = new ContentValues();
+			cv.put(INSTALL_STATE, translateInstallState(installState));
+			db.update(PACKAGES_TO_BE_INSTALLED, cv, PACKAGE + "=?", new String[] {qualifiedName});
+		}
+		finally
+		{
+			packagesToBeInstalledTableLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds a package to the list of packages we are managing.
+	 * 
+	 * @param qualifiedName The qualified name of the package in the form
+	 * 						qualified.name.like.this.
+	 * 
+	 * @throws SQLException Thrown if there is an issue querying the database.
+	 */
+	public void addManaged(String qualifiedName, String appName) throws SQLException
+	{
+		managedPackagesTableLock.writeLock().lock();
+		
+		SQLiteDatabase db = getDatabase();
+		try
+		{
+			Set<String> managedCache = getManagedCache(db);
+			if(!managedCache.contains(qualifiedName))
 			{
 				ContentValues cv = new ContentValues();
 				cv.put(PACKAGE, qualifiedName);
 				cv.put(APP_NAME, appName);
-				db.insert(MANAGED_PACKAGES, null, cv);
+				if(db.insert(MANAGED_PACKAGES, null, cv) == -1)
+				{
+					throw new SQLException("Failed to insert new entry into the managed packages table.");
+				}
+				
+				managedCache.add(qualifiedName);
 			}
-			c.close();
 		}
 		finally
 		{
-			db.close();
-			managedPackagesTableLock.unlock();
+			managedPackagesTableLock.writeLock().unlock();
 		}
 	}
 	
@@ -554,29 +906,23 @@ public class Database
 	 */
 	public void stopManaging(String qualifiedName) throws SQLException
 	{
-		managedPackagesTableLock.lock();
+		managedPackagesTableLock.writeLock().lock();
 		
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
-			Cursor c = db.query(MANAGED_PACKAGES, new String[] {PACKAGE}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
-			if(c == null)
-			{
-				throw new SQLException("Couldn't query managed packges table.");
-			}
-			
-			if(c.getCount() > 0)
+			Set<String> managedCache = getManagedCache(db);
+			if(managedCache.contains(qualifiedName))
 			{
 				db.delete(MANAGED_PACKAGES, PACKAGE + "=?", new String[] {qualifiedName});
+				managedCache.remove(qualifiedName);
+				
 				addPackageToBeRemoved(qualifiedName);
 			}
-			
-			c.close();
 		}
 		finally
 		{
-			db.close();
-			managedPackagesTableLock.unlock();
+			managedPackagesTableLock.writeLock().unlock();
 		}
 	}
 	
@@ -590,28 +936,16 @@ public class Database
 	 */
 	public boolean isManaged(String qualifiedName)
 	{
-		managedPackagesTableLock.lock();
+		managedPackagesTableLock.readLock().lock();
 		
-		boolean result = false;
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 		try
 		{
-			Cursor c = db.query(MANAGED_PACKAGES, new String[] {PACKAGE}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
-			if(c == null)
-			{
-				throw new SQLException("Unable to query managed packages database.");
-			}
-			
-			result = c.getCount() > 0;
-			c.close();
+			return getManagedCache(getDatabase()).contains(qualifiedName);
 		}
 		finally
 		{
-			db.close();
-			managedPackagesTableLock.unlock();
+			managedPackagesTableLock.readLock().unlock();
 		}
-		
-		return result;
 	}
 	
 	/**
@@ -624,33 +958,61 @@ public class Database
 	 */
 	public LinkedList<String> getManaged() throws SQLException
 	{
-		managedPackagesTableLock.lock();
+		managedPackagesTableLock.readLock().lock();
 		
-		LinkedList<String> result = new LinkedList<String>();
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 		try
 		{
-			Cursor c = db.query(MANAGED_PACKAGES, new String[] {PACKAGE}, null, null, null, null, null);
-			if(c == null)
-			{
-				throw new SQLException("Cannot query managed packages table.");
-			}
-			c.moveToFirst();
-			
-			while(!c.isAfterLast())
-			{
-				result.add(c.getString(0));
-				c.moveToNext();
-			}
-			c.close();
+			return new LinkedList<String>(getManagedCache(getDatabase()));
 		}
 		finally
 		{
-			db.close();
-			managedPackagesTableLock.unlock();
+			managedPackagesTableLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Returns the in-memory copy of the set of managed packages, reading it
+	 * from the database if this is the first time it is needed. Every
+	 * change to the managed packages table is also made to this set, so it
+	 * is always the same as the table.
+	 * 
+	 * Note: The managed packages table lock must be held while calling this
+	 * 		 and while using the set it returns. The set may only be changed
+	 * 		 while holding the write lock.
+	 * 
+	 * @param db The open database.
+	 * 
+	 * @return The set of the qualified names of all managed packages.
+	 * 
+	 * @throws SQLException Thrown if there is an issue reading from the
+	 * 						database.
+	 */
+	private Set<String> getManagedCache(SQLiteDatabase db) throws SQLException
+	{
+		synchronized(mManagedCacheLock)
+		{
+			if(mManagedCache == null)
+			{
+				Cursor c = db.query(MANAGED_PACKAGES, new String[] {PACKAGE}, null, null, null, null, null);
+				if(c == null)
+				{
+					throw new SQLException("Cannot query managed packages table.");
+				}
+				
+				Set<String> managedCache = new HashSet<String>(c.getCount() * 2);
+				c.moveToFirst();
+				while(!c.isAfterLast())
+				{
+					managedCache.add(c.getString(0));
+					c.moveToNext();
+				}
+				c.close();
+				
+				mManagedCache = managedCache;
+			}
+			
+			return mManagedCache;
 		}
-		
-		return result;
 	}
 	
 	/**
@@ -666,10 +1028,10 @@ public class Database
 	 */
 	public LinkedList<PackageDescription> getMangedDescriptions() throws SQLException
 	{
-		managedPackagesTableLock.lock();
+		managedPackagesTableLock.readLock().lock();
 		
 		LinkedList<PackageDescription> result = new LinkedList<PackageDescription>();
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			Cursor c = db.query(MANAGED_PACKAGES, new String[] {PACKAGE, APP_NAME}, null, null, null, null, null);
@@ -688,8 +1050,7 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			managedPackagesTableLock.unlock();
+			managedPackagesTableLock.readLock().unlock();
 		}
 		
 		return result;
@@ -711,9 +1072,9 @@ public class Database
 	 */
 	private void addPackageToBeRemoved(String qualifiedName) throws SQLException
 	{
-		packagesToBeUninstalledTableLock.lock();
+		packagesToBeUninstalledTableLock.writeLock().lock();
 		
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			Cursor c = db.query(PACKAGES_TO_BE_UNINSTALLED, new String[] {ID, PACKAGE}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
@@ -732,8 +1093,7 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			packagesToBeUninstalledTableLock.unlock();
+			packagesToBeUninstalledTableLock.writeLock().unlock();
 		}
 	}
 	
@@ -746,17 +1106,16 @@ public class Database
 	 */
 	public void removePackageToBeRemoved(String qualifiedName)
 	{
-		packagesToBeUninstalledTableLock.lock();
+		packagesToBeUninstalledTableLock.writeLock().lock();
 		
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			db.delete(PACKAGES_TO_BE_UNINSTALLED, PACKAGE + "=?", new String[] {qualifiedName});
 		}
 		finally
 		{
-			db.close();
-			packagesToBeUninstalledTableLock.unlock();
+			packagesToBeUninstalledTableLock.writeLock().unlock();
 		}
 	}
 	
@@ -775,10 +1134,10 @@ public class Database
 	 */
 	public boolean isPackageToBeRemoved(String qualifiedName) throws SQLException
 	{
-		packagesToBeUninstalledTableLock.lock();
+		packagesToBeUninstalledTableLock.readLock().lock();
 		
 		boolean result = false;
-		SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			Cursor c = db.query(PACKAGES_TO_BE_UNINSTALLED, new String[] {ID, PACKAGE}, PACKAGE + "=?", new String[] {qualifiedName}, null, null, null);
@@ -792,8 +1151,7 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			packagesToBeUninstalledTableLock.unlock();
+			packagesToBeUninstalledTableLock.readLock().unlock();
 		}
 		
 		return result;
@@ -807,10 +1165,10 @@ public class Database
 	 */
 	public LinkedList<String> getPackagesToBeRemoved()
 	{
-		packagesToBeUninstalledTableLock.lock();
+		packagesToBeUninstalledTableLock.readLock().lock();
 		
 		LinkedList<String> result = new LinkedList<String>();
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		SQLiteDatabase db = getDatabase();
 		try
 		{
 			Cursor c = db.query(PACKAGES_TO_BE_UNINSTALLED, new String[] {ID, PACKAGE}, null, null, null, null, null);
@@ -829,13 +1187,73 @@ public class Database
 		}
 		finally
 		{
-			db.close();
-			packagesToBeUninstalledTableLock.unlock();
+			packagesToBeUninstalledTableLock.readLock().unlock();
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Stops managing all of the given packages, marks the ones that were
+	 * being managed as needing to be removed, and removes any of their
+	 * updates. Each of these is done as one bulk statement per group of
+	 * packages rather than one statement per package.
+	 * 
+	 * Note: This must be called within a transaction with all of the table
+	 * 		 locks held.
+	 * 
+	 * @param db The open, writable database.
+	 * 
+	 * @param qualifiedNames The qualified names of the packages that should
+	 * 						 no longer be managed.
+	 */
+	private static void stopManaging(SQLiteDatabase db, Collection<String> qualifiedNames)
+	{
+		Iterator<String> iter = qualifiedNames.iterator();
+		while(iter.hasNext())
+		{
+			// Take as many of the packages as SQLite will allow to be bound
+			// in a single statement.
+			LinkedList<String> packages = new LinkedList<String>();
+			while(iter.hasNext() && (packages.size() < MAX_BOUND_ARGUMENTS))
+			{
+				packages.add(iter.next());
+			}
+			
+			StringBuilder inClause = new StringBuilder(" IN (");
+			for(int i = 0; i < packages.size(); i++)
+			{
+				inClause.append((i == 0) ? "?" : ", ?");
+			}
+			inClause.append(')');
+			
+			Object[] bindArgs = packages.toArray();
+			
+			// Only packages that were actually being managed are marked as
+			// needing to be removed.
+			db.execSQL("INSERT OR IGNORE INTO " + PACKAGES_TO_BE_UNINSTALLED + 
+					" (" + PACKAGE + ") SELECT " + PACKAGE + " FROM " + MANAGED_PACKAGES + 
+					" WHERE " + PACKAGE + inClause, bindArgs);
+			db.execSQL("DELETE FROM " + MANAGED_PACKAGES + 
+					" WHERE " + PACKAGE + inClause, bindArgs);
+			db.execSQL("DELETE FROM " + PACKAGES_TO_BE_INSTALLED + 
+					" WHERE " + PACKAGE + inClause, bindArgs);
+		}
+	}
+	
+	/**
+	 * Closes a compiled statement if it was ever compiled.
+	 * 
+	 * @param statement The statement to close or null.
+	 */
+	private static void closeStatement(SQLiteStatement statement)
+	{
+		if(statement != null)
+		{
+			statement.close();
+		}
+	}
+	
 	/**
 	 * Translates the 'Action's supplied by PackageInformation objects into
 	 * integer values to be stored in the database.
@@ -884,4 +1302,66 @@ public class Database
 			return Action.CLEAN;
 		}
 	}
+	
+	/**
+	 * Translates the 'InstallState's supplied by PackageInformation objects
+	 * into integer values to be stored in the database.
+	 * 
+	 * @param installState The InstallState value retrieved from a
+	 * 					   PackageInformation object.
+	 * 
+	 * @return The local integer representation of the parameterized
+	 * 		   'installState'.
+	 */
+	public static int translateInstallState(InstallState installState)
+	{
+		switch(installState)
+		{
+		case DOWNLOADING:
+			return INSTALL_STATE_DOWNLOADING;
+			
+		case DOWNLOADED:
+			return INSTALL_STATE_DOWNLOADED;
+			
+		case AWAITING_INSTALL:
+			return INSTALL_STATE_AWAITING_INSTALL;
+			
+		case VERIFIED:
+			return INSTALL_STATE_VERIFIED;
+			
+		default:
+			return INSTALL_STATE_QUEUED;
+		}
+	}
+	
+	/**
+	 * Returns a PackageInformation 'InstallState' based on the parameterized
+	 * 'installState' that is presumed to be from the database.
+	 * 
+	 * @param installState The database's interpretation of a
+	 * 					   PackageInformation 'InstallState'.
+	 * 
+	 * @return A PackageInformation 'InstallState' based on the parameterized
+	 * 		   'installState'.
+	 */
+	public static InstallState translateInstallState(int installState)
+	{
+		switch(installState)
+		{
+		case INSTALL_STATE_DOWNLOADING:
+			return InstallState.DOWNLOADING;
+			
+		case INSTALL_STATE_DOWNLOADED:
+			return InstallState.DOWNLOADED;
+			
+		case INSTALL_STATE_AWAITING_INSTALL:
+			return InstallState.AWAITING_INSTALL;
+			
+		case INSTALL_STATE_VERIFIED:
+			return InstallState.VERIFIED;
+			
+		default:
+			return InstallState.QUEUED;
+		}
+	}
 }
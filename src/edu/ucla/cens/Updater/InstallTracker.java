@@ -0,0 +1,90 @@
+package edu.ucla.cens.Updater;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+
+/**
+ * Watches for packages being installed or replaced and removes their
+ * updates as soon as the system reports that the new version is installed.
+ * This also catches packages that were installed without going through the
+ * Installer, so their updates don't linger until the next check.
+ * 
+ * @version 1.0
+ */
+public class InstallTracker extends BroadcastReceiver
+{
+	/**
+	 * Has the update for the package that was installed removed if the
+	 * installed version is at least as new as the update. This runs on the
+	 * main thread, and nothing keeps this process alive once it returns, so
+	 * the database work is handed to the InstallTrackerService.
+	 */
+	@Override
+	public void onReceive(Context context, Intent intent)
+	{
+		String qualifiedName = getQualifiedName(intent);
+		if(qualifiedName == null)
+		{
+			return;
+		}
+		
+		// An update is broadcast both as the package being added and as it
+		// being replaced, so only the latter is handled.
+		if(Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction()) &&
+				intent.getBooleanExtra(Intent.EXTRA_REPLACING, false))
+		{
+			return;
+		}
+		
+		// Whatever we knew about the installed packages is now stale.
+		InstalledPackagesSnapshot.invalidate();
+		
+		InstallTrackerService.start(context, qualifiedName);
+	}
+	
+	/**
+	 * Returns the qualified name of the package that a package broadcast is
+	 * about.
+	 * 
+	 * @param intent The package broadcast.
+	 * 
+	 * @return The qualified name of the package or null if the broadcast
+	 * 		   doesn't name one.
+	 */
+	public static String getQualifiedName(Intent intent)
+	{
+		Uri data = intent.getData();
+		if(data == null)
+		{
+			return null;
+		}
+		
+		return data.getSchemeSpecificPart();
+	}
+	
+	/**
+	 * Returns the version of a package that is installed right now. Unlike
+	 * the InstalledPackagesSnapshot, this only looks up the one package.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @return The installed version of the package or
+	 * 		   InstalledPackagesSnapshot.NOT_INSTALLED if it isn't installed.
+	 */
+	public static int getInstalledVersion(Context context, String qualifiedName)
+	{
+		try
+		{
+			return context.getPackageManager().getPackageInfo(qualifiedName, 0).versionCode;
+		}
+		catch(PackageManager.NameNotFoundException e)
+		{
+			return InstalledPackagesSnapshot.NOT_INSTALLED;
+		}
+	}
+}
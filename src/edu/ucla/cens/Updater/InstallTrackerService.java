@@ -0,0 +1,92 @@
+package edu.ucla.cens.Updater;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.database.SQLException;
+import edu.ucla.cens.systemlog.Log;
+
+/**
+ * Does the database work for the InstallTracker. A BroadcastReceiver that
+ * was declared in the manifest can't keep this process alive once it
+ * returns, so the work is handed to this Service instead, which runs it on
+ * its own thread and stops itself when it is done.
+ * 
+ * @version 1.0
+ */
+public class InstallTrackerService extends IntentService
+{
+	private static final String TAG = "CENS.Updater.InstallTrackerService";
+	
+	private static final String EXTRA_PACKAGE = "edu.ucla.cens.Updater.InstallTrackerService.Package";
+	
+	/**
+	 * Creates the Service. It is only ever created by the system.
+	 */
+	public InstallTrackerService()
+	{
+		super("Install Tracker");
+	}
+	
+	/**
+	 * Asks for the update for a package that was just installed to be
+	 * removed if it is no longer needed.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @param qualifiedName The qualified name of the package that was
+	 * 						installed.
+	 */
+	public static void start(Context context, String qualifiedName)
+	{
+		Intent intent = new Intent(context, InstallTrackerService.class);
+		intent.putExtra(EXTRA_PACKAGE, qualifiedName);
+		context.startService(intent);
+	}
+	
+	/**
+	 * Gets the logger ready.
+	 */
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+		
+		Log.initialize(this, Database.LOGGER_APP_NAME);
+	}
+	
+	/**
+	 * Removes the update for the package that was installed if the installed
+	 * version is at least as new as the update.
+	 */
+	@Override
+	protected void onHandleIntent(Intent intent)
+	{
+		String qualifiedName = intent.getStringExtra(EXTRA_PACKAGE);
+		if(qualifiedName == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			Database db = Database.getInstance(this);
+			int updateVersion = db.getUpdateVersion(qualifiedName);
+			if(updateVersion == -1)
+			{
+				return;
+			}
+			
+			int installedVersion = InstallTracker.getInstalledVersion(this, qualifiedName);
+			if(installedVersion >= updateVersion)
+			{
+				Log.i(TAG, "Version %d of %s was installed, so its update is no longer needed.", installedVersion, qualifiedName);
+				db.removeUpdate(qualifiedName);
+			}
+		}
+		catch(SQLException e)
+		{
+			Log.e(TAG, "Unable to remove the installed update for " + qualifiedName, e);
+		}
+	}
+}
@@ -25,6 +25,9 @@ public class InstallationEchoer extends BroadcastReceiver
 	public void onReceive(Context context, Intent intent) {
 		Log.i(TAG, "Echoing new package added Intent: " + intent.getData().toString());
 		
+		// Whatever we knew about the installed packages is now stale.
+		InstalledPackagesSnapshot.invalidate();
+		
 		Intent newIntent = new Intent(INSTALL_ACTION);
 		newIntent.putExtras(intent);
 		newIntent.setPackage(intent.getData().getSchemeSpecificPart());
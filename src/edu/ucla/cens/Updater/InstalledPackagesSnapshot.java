@@ -0,0 +1,103 @@
+package edu.ucla.cens.Updater;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+
+/**
+ * A snapshot of the packages that are installed on the device and their
+ * versions. It is built with a single call to the PackageManager and then
+ * answers every lookup from memory, so an update cycle doesn't need to ask
+ * the system about each package individually.
+ * 
+ * The snapshot is shared by the whole process. It is invalidated whenever a
+ * package is installed and at the beginning of each update cycle, and it is
+ * rebuilt the next time it is requested.
+ * 
+ * @version 1.0
+ */
+public class InstalledPackagesSnapshot
+{
+	/**
+	 * The version returned for a package that isn't installed.
+	 */
+	public static final int NOT_INSTALLED = -1;
+	
+	private static InstalledPackagesSnapshot sSnapshot = null;
+	
+	private final Map<String, Integer> mVersionCodes;
+	
+	/**
+	 * Builds a new snapshot from the PackageManager.
+	 * 
+	 * @param context The Context in which this application is running.
+	 */
+	private InstalledPackagesSnapshot(Context context)
+	{
+		List<PackageInfo> installedPackages = context.getPackageManager().getInstalledPackages(0);
+		
+		mVersionCodes = new HashMap<String, Integer>(installedPackages.size() * 2);
+		for(PackageInfo packageInfo : installedPackages)
+		{
+			mVersionCodes.put(packageInfo.packageName, packageInfo.versionCode);
+		}
+	}
+	
+	/**
+	 * Returns the current snapshot, building a new one if there is none or
+	 * the last one was invalidated.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @return The current snapshot of the installed packages.
+	 */
+	public static synchronized InstalledPackagesSnapshot getInstance(Context context)
+	{
+		if(sSnapshot == null)
+		{
+			sSnapshot = new InstalledPackagesSnapshot(context);
+		}
+		
+		return sSnapshot;
+	}
+	
+	/**
+	 * Discards the current snapshot, so the next request will build a new
+	 * one. Snapshots that were already handed out are not changed.
+	 */
+	public static synchronized void invalidate()
+	{
+		sSnapshot = null;
+	}
+	
+	/**
+	 * Returns whether or not a package was installed when this snapshot was
+	 * taken.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @return True if the package is installed; false, otherwise.
+	 */
+	public boolean isInstalled(String qualifiedName)
+	{
+		return mVersionCodes.containsKey(qualifiedName);
+	}
+	
+	/**
+	 * Returns the version code of a package when this snapshot was taken.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @return The version code of the installed package or
+	 * 		   {@link #NOT_INSTALLED} if it isn't installed.
+	 */
+	public int getVersionCode(String qualifiedName)
+	{
+		Integer versionCode = mVersionCodes.get(qualifiedName);
+		
+		return (versionCode == null) ? NOT_INSTALLED : versionCode;
+	}
+}
@@ -0,0 +1,991 @@
+package edu.ucla.cens.Updater;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.SQLException;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import edu.ucla.cens.Updater.PackageInformation.InstallState;
+import edu.ucla.cens.systemlog.Log;
+
+/**
+ * Downloads and installs the updates that are to be applied, one package at
+ * a time and in order. The Installer Activity only attaches to this Service
+ * to show what it is doing and to start the system's installer and
+ * uninstaller, which must be started from an Activity. The work carries on
+ * when the Activity is destroyed, such as when the screen is rotated, and
+ * the Activity picks it back up when it attaches again.
+ * 
+ * How far along each update is is kept in the database. If this process is
+ * killed, the next session picks up where this one left off: updates that
+ * were downloaded aren't downloaded again, and an update whose installer
+ * was showing is checked against what is now installed instead of being
+ * skipped.
+ * 
+ * @version 1.0
+ */
+public class InstallerService extends Service
+{
+	private static final String TAG = "CENS.Updater.InstallerService";
+	
+	/**
+	 * The number of packages after the current one that may be downloaded
+	 * while the current one is being installed.
+	 */
+	private static final int PREFETCH_DEPTH = 2;
+	
+	/**
+	 * Writes the state of the updates to the database in the order it
+	 * changes. The updates table may be locked for a whole manifest by a
+	 * background check, so the main thread must never wait on it. This is
+	 * never shut down, unlike the download executor, so that no write is
+	 * lost when a session is cancelled or this Service is destroyed.
+	 */
+	private static final ExecutorService sDatabaseExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread writer = new Thread(runnable);
+			writer.setName("Install State Writer");
+			return writer;
+		}
+	});
+	
+	private static final String TEXT_CLEANING = "Cleaning...";
+	private static final String TEXT_NO_PACKAGES = "No packages available for updating";
+	private static final String TEXT_DATABASE_ERROR = "Internal error while retrieving package list";
+	
+	/**
+	 * Receives what the installation is doing. Except where noted, all of
+	 * these are called on the main thread.
+	 * 
+	 * @version 1.0
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when the text describing what is being done changes.
+		 * 
+		 * @param text The text describing what is being done.
+		 */
+		public void onStatusChanged(String text);
+		
+		/**
+		 * Called as the current package is downloaded. This is called on the
+		 * thread doing the download.
+		 * 
+		 * @param current The number of bytes that have been downloaded.
+		 * 
+		 * @param total The total number of bytes or
+		 * 				ApkDownloader.UNKNOWN_LENGTH.
+		 */
+		public void onProgress(int current, int total);
+		
+		/**
+		 * Called when any progress that was shown no longer applies.
+		 */
+		public void onProgressReset();
+		
+		/**
+		 * Called when the current package needs to be installed by the
+		 * system's installer. The installation must be reported back with
+		 * installFinished().
+		 * 
+		 * @param apkFile The downloaded package.
+		 */
+		public void onInstallRequested(File apkFile);
+		
+		/**
+		 * Called when the current package needs to be uninstalled by the
+		 * system's uninstaller before it can be installed. The uninstallation
+		 * must be reported back with uninstallFinished().
+		 * 
+		 * @param qualifiedName The qualified name of the package.
+		 */
+		public void onUninstallRequested(String qualifiedName);
+		
+		/**
+		 * Called when there is nothing left to do.
+		 */
+		public void onFinished();
+	}
+	
+	/**
+	 * Gives the Activities in this process direct access to this Service.
+	 * 
+	 * @version 1.0
+	 */
+	public class LocalBinder extends Binder
+	{
+		/**
+		 * Returns the Service this is bound to.
+		 * 
+		 * @return The Service this is bound to.
+		 */
+		public InstallerService getService()
+		{
+			return InstallerService.this;
+		}
+	}
+	
+	/**
+	 * What the Listener has been asked to do for the current package.
+	 */
+	private enum Request { NONE, INSTALL, UNINSTALL };
+	
+	private final IBinder mBinder = new LocalBinder();
+	private final Handler mHandler = new Handler();
+	
+	private Database mDatabase;
+	private ApkDownloader mApkDownloader;
+	private ExecutorService mDownloadExecutor;
+	
+	private volatile Listener mListener;
+	private String mStatus;
+	
+	private boolean mRunning;
+	private boolean mFinished;
+	
+	private List<PackageInformation> mUpdates;
+	private int mCurrent;
+	private volatile PackageInformation mCurrentPackage;
+	private int mNextDownload;
+	private final Set<PackageInformation> mPendingDownloads = new HashSet<PackageInformation>();
+	
+	private Request mRequest;
+	private File mRequestFile;
+	
+	/**
+	 * Verifies the updates in this session as soon as the system reports
+	 * that they were installed, whether or not it was done by us.
+	 */
+	private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver()
+	{
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			String qualifiedName = InstallTracker.getQualifiedName(intent);
+			if(mRunning && (qualifiedName != null))
+			{
+				onPackageInstalled(qualifiedName);
+			}
+		}
+	};
+	
+	/**
+	 * Downloads one package on the download executor and reports the result
+	 * back on the main thread. Only the package currently being processed
+	 * reports its progress.
+	 * 
+	 * @version 1.0
+	 */
+	private class PackageDownloader implements Runnable, ApkDownloader.DownloadListener
+	{
+		private final ExecutorService mExecutor;
+		private final PackageInformation mPackage;
+		
+		/**
+		 * Creates a downloader for one of the packages to be updated.
+		 * 
+		 * @param executor The executor this will be run on. Shutting it down
+		 * 				   cancels the download.
+		 * 
+		 * @param packageInformation The package to download.
+		 */
+		PackageDownloader(ExecutorService executor, PackageInformation packageInformation)
+		{
+			mExecutor = executor;
+			mPackage = packageInformation;
+		}
+		
+		/**
+		 * Downloads the package unless it was already downloaded and then
+		 * reports the result.
+		 */
+		@Override
+		public void run()
+		{
+			ApkDownloader.Result result = ApkDownloader.Result.CANCELLED;
+			if(!isCancelled())
+			{
+				// The state is only ever changed on the main thread, so that
+				// the update and the database can't drift apart.
+				mHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						onDownloadStarted(mPackage);
+					}
+				});
+				result = mApkDownloader.download(mPackage, this);
+			}
+			
+			final ApkDownloader.Result finalResult = result;
+			mHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					onDownloadFinished(mExecutor, mPackage, finalResult);
+				}
+			});
+		}
+		
+		/**
+		 * Passes the progress on if this is the package currently being
+		 * processed.
+		 */
+		@Override
+		public void onProgress(int totalDownloaded, int totalLength)
+		{
+			Listener listener = mListener;
+			if((listener != null) && (mPackage == mCurrentPackage))
+			{
+				listener.onProgress(totalDownloaded, totalLength);
+			}
+		}
+		
+		/**
+		 * Stops the download if its session has been stopped.
+		 */
+		@Override
+		public boolean isCancelled()
+		{
+			return mExecutor.isShutdown();
+		}
+	}
+	
+	/**
+	 * Removes the stale downloads and brings the state of each update up to
+	 * date with what is downloaded and installed before the session starts.
+	 * 
+	 * @version 1.0
+	 */
+	private class SessionPreparer implements Runnable
+	{
+		private final ExecutorService mExecutor;
+		private final PackageInformation[] mAllUpdates;
+		private final List<PackageInformation> mSessionUpdates;
+		
+		/**
+		 * Creates the task that prepares a session.
+		 * 
+		 * @param executor The executor of the session this prepares.
+		 * 
+		 * @param allUpdates All of the updates in the database, whether or
+		 * 					 not they are to be applied.
+		 * 
+		 * @param sessionUpdates The updates to be applied in this session.
+		 */
+		SessionPreparer(ExecutorService executor, PackageInformation[] allUpdates, List<PackageInformation> sessionUpdates)
+		{
+			mExecutor = executor;
+			mAllUpdates = allUpdates;
+			mSessionUpdates = sessionUpdates;
+		}
+		
+		/**
+		 * Cleans up the downloads, updates the states, and then starts
+		 * processing the first package.
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				mApkDownloader.deleteStaleFiles(mAllUpdates);
+			}
+			catch(SecurityException e)
+			{
+				Log.e(TAG, "Prevented from reading or deleting files from our own files directory.", e);
+			}
+			catch(Exception e)
+			{
+				// I recognize that it is bad to catch a generic exception, but
+				// this is not critical if it fails. We will note the error and
+				// continue on as normal.
+				Log.e(TAG, "An exception occurred while deleting the old packages.", e);
+			}
+			
+			for(PackageInformation update : mSessionUpdates)
+			{
+				restoreInstallState(update);
+			}
+			
+			mHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// The session may have been stopped in the meantime.
+					if(mRunning && (mExecutor == mDownloadExecutor))
+					{
+						processPackage();
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Gets the objects shared by every session.
+	 */
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+		
+		Log.initialize(this, Database.LOGGER_APP_NAME);
+		
+		mDatabase = Database.getInstance(this);
+		mApkDownloader = new ApkDownloader(this);
+		
+		mRunning = false;
+		mFinished = false;
+		mRequest = Request.NONE;
+		
+		IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+		packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		packageFilter.addDataScheme("package");
+		registerReceiver(mPackageReceiver, packageFilter);
+	}
+	
+	/**
+	 * Starts a session unless one is already running.
+	 */
+	@Override
+	public void onStart(Intent intent, int startId)
+	{
+		super.onStart(intent, startId);
+		
+		if(!mRunning)
+		{
+			startSession();
+		}
+	}
+	
+	/**
+	 * Returns the binder through which the Installer Activity attaches.
+	 */
+	@Override
+	public IBinder onBind(Intent intent)
+	{
+		return mBinder;
+	}
+	
+	/**
+	 * Stops any downloads that are still running and stops listening for
+	 * installations.
+	 */
+	@Override
+	public void onDestroy()
+	{
+		super.onDestroy();
+		
+		unregisterReceiver(mPackageReceiver);
+		
+		if(mDownloadExecutor != null)
+		{
+			mDownloadExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Attaches a Listener, replacing any other, and immediately brings it up
+	 * to date with what is being done. If the Listener had been asked to
+	 * install or uninstall the current package and hadn't yet reported back,
+	 * it is asked again.
+	 * 
+	 * @param listener The Listener to attach.
+	 */
+	public void attach(Listener listener)
+	{
+		mListener = listener;
+		
+		if(mStatus != null)
+		{
+			listener.onStatusChanged(mStatus);
+		}
+		if(mFinished)
+		{
+			listener.onFinished();
+		}
+		else
+		{
+			deliverRequest();
+		}
+	}
+	
+	/**
+	 * Detaches a Listener if it is the one attached.
+	 * 
+	 * @param listener The Listener to detach.
+	 * 
+	 * @param cancel Whether or not the session should be stopped because the
+	 * 				 user left it.
+	 */
+	public void detach(Listener listener, boolean cancel)
+	{
+		if(mListener != listener)
+		{
+			return;
+		}
+		mListener = null;
+		
+		if(cancel && mRunning)
+		{
+			Log.i(TAG, "The user left the installation.");
+			
+			mDownloadExecutor.shutdownNow();
+			mRunning = false;
+			mRequest = Request.NONE;
+			mCurrentPackage = null;
+			stopSelf();
+		}
+	}
+	
+	/**
+	 * Called when the system's installer returns. Its result is the same
+	 * whether the installation failed, was aborted, or was successful. The
+	 * update was normally already verified when the system reported that it
+	 * was installed. If not, the report may still be on its way, so the
+	 * installed version of the package is looked up once before the
+	 * installation is considered to have failed.
+	 */
+	public void installFinished()
+	{
+		if(mRequest != Request.INSTALL)
+		{
+			return;
+		}
+		mRequest = Request.NONE;
+		
+		PackageInformation currPackage = mCurrentPackage;
+		if(currPackage.getQualifiedName().equals("edu.ucla.cens.Updater"))
+		{
+			// A successful self-update would have killed this process.
+			SharedPreferences sharedPreferences = getSharedPreferences(Database.PACKAGE_PREFERENCES, Context.MODE_PRIVATE);
+			sharedPreferences.edit().putBoolean(Database.PREFERENCES_SELF_UPDATE, false).commit();
+			
+			Log.i(TAG, "Self-update failed.");
+			setInstallState(currPackage, InstallState.DOWNLOADED);
+			nextPackage();
+			return;
+		}
+		
+		if(currPackage.getInstallState() == InstallState.VERIFIED)
+		{
+			nextPackage();
+			return;
+		}
+		
+		int installedVersion = InstallTracker.getInstalledVersion(this, currPackage.getQualifiedName());
+		if(installedVersion >= currPackage.getVersion())
+		{
+			setVerified(currPackage);
+		}
+		else
+		{
+			if(installedVersion == InstalledPackagesSnapshot.NOT_INSTALLED)
+			{
+				Log.w(TAG, "The package failed to be installed.");
+			}
+			else
+			{
+				Log.w(TAG, "The package failed to be upgraded.");
+			}
+			
+			// It is still downloaded for the next time.
+			setInstallState(currPackage, InstallState.DOWNLOADED);
+		}
+		
+		nextPackage();
+	}
+	
+	/**
+	 * Called when the system's uninstaller returns. If the package was
+	 * uninstalled, the new version is installed; otherwise, the package is
+	 * skipped.
+	 */
+	public void uninstallFinished()
+	{
+		if(mRequest != Request.UNINSTALL)
+		{
+			return;
+		}
+		mRequest = Request.NONE;
+		
+		// The uninstaller may have just changed what is installed.
+		InstalledPackagesSnapshot.invalidate();
+		if(InstalledPackagesSnapshot.getInstance(this).isInstalled(mCurrentPackage.getQualifiedName()))
+		{
+			// The user didn't actually uninstall the package.
+			Log.i(TAG, "The user did not uninstall the package.");
+			nextPackage();
+		}
+		else
+		{
+			continuePackage();
+		}
+	}
+	
+	/**
+	 * Reads the updates to be applied and, after cleaning up the downloads,
+	 * starts processing them.
+	 */
+	private void startSession()
+	{
+		mRunning = true;
+		mFinished = false;
+		mRequest = Request.NONE;
+		mCurrentPackage = null;
+		mPendingDownloads.clear();
+		
+		PackageInformation[] allUpdates = mDatabase.getUpdates();
+		if(allUpdates == null)
+		{
+			Log.e(TAG, "List of packages to be updated is null.");
+			setStatus(TEXT_DATABASE_ERROR);
+			finishSession();
+			return;
+		}
+		
+		mUpdates = new ArrayList<PackageInformation>(allUpdates.length);
+		for(PackageInformation update : allUpdates)
+		{
+			if(update.getToBeApplied())
+			{
+				mUpdates.add(update);
+			}
+		}
+		
+		if(mUpdates.isEmpty())
+		{
+			Log.i(TAG, "List of packages has no updates in it.");
+			setStatus(TEXT_NO_PACKAGES);
+			finishSession();
+			return;
+		}
+		
+		mCurrent = 0;
+		mNextDownload = 0;
+		
+		// Start this session with a fresh view of what is installed.
+		InstalledPackagesSnapshot.invalidate();
+		
+		// A single download runs at a time, so the packages are downloaded
+		// in the order they will be installed.
+		mDownloadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread downloader = new Thread(runnable);
+				downloader.setName("Downloader");
+				return downloader;
+			}
+		});
+		
+		setStatus(TEXT_CLEANING);
+		mDownloadExecutor.execute(new SessionPreparer(mDownloadExecutor, allUpdates, mUpdates));
+	}
+	
+	/**
+	 * Marks the session as done, tells the Listener, and stops this Service
+	 * once nothing is bound to it.
+	 */
+	private void finishSession()
+	{
+		mRunning = false;
+		mFinished = true;
+		mCurrentPackage = null;
+		
+		if(mDownloadExecutor != null)
+		{
+			mDownloadExecutor.shutdown();
+		}
+		
+		Listener listener = mListener;
+		if(listener != null)
+		{
+			listener.onFinished();
+		}
+		
+		stopSelf();
+	}
+	
+	/**
+	 * Brings the persisted state of an update up to date with what is
+	 * downloaded and installed. Its installer may have been showing when
+	 * this process was killed, in which case it may already be installed.
+	 * 
+	 * @param update The update whose state is restored.
+	 */
+	private void restoreInstallState(PackageInformation update)
+	{
+		if(update.getInstallState() == InstallState.AWAITING_INSTALL)
+		{
+			int installedVersion = InstalledPackagesSnapshot.getInstance(this).getVersionCode(update.getQualifiedName());
+			if(installedVersion >= update.getVersion())
+			{
+				Log.i(TAG, "The update for " + update.getQualifiedName() + " was installed in an earlier session.");
+				setVerified(update);
+				return;
+			}
+		}
+		
+		setInstallState(update, (mApkDownloader.isDownloaded(update)) ? InstallState.DOWNLOADED : InstallState.QUEUED);
+	}
+	
+	/**
+	 * Increases our index and begins to process the next package.
+	 */
+	private void nextPackage()
+	{
+		mCurrent++;
+		processPackage();
+	}
+	
+	/**
+	 * If we have processed all packages, it finishes the session. If not, it
+	 * makes sure the current package and the next few are being downloaded
+	 * and then either asks for the current package to be uninstalled or
+	 * continues on to installing it.
+	 */
+	private void processPackage()
+	{
+		// If we have processed all packages, leave.
+		if(mCurrent >= mUpdates.size())
+		{
+			Log.i(TAG, "Done updating all packages.");
+			finishSession();
+			return;
+		}
+		
+		PackageInformation currPackage = mUpdates.get(mCurrent);
+		mCurrentPackage = currPackage;
+		notifyProgressReset();
+		
+		if(currPackage.getInstallState() == InstallState.VERIFIED)
+		{
+			nextPackage();
+			return;
+		}
+		
+		// Make sure this package and the next few are being downloaded.
+		prefetchDownloads();
+		
+		// If the package is installed but this isn't an update, we need to
+		// first remove the original package.
+		if(currPackage.getAction().equals(PackageInformation.Action.CLEAN) &&
+				InstalledPackagesSnapshot.getInstance(this).isInstalled(currPackage.getQualifiedName()))
+		{
+			mRequest = Request.UNINSTALL;
+			deliverRequest();
+		}
+		else
+		{
+			continuePackage();
+		}
+	}
+	
+	/**
+	 * Installs the current package if it has been downloaded or waits for its
+	 * download otherwise. If its download had failed while it was being
+	 * downloaded ahead of time, it is tried again.
+	 */
+	private void continuePackage()
+	{
+		if(mCurrentPackage.getInstallState() == InstallState.DOWNLOADED)
+		{
+			installPackage();
+			return;
+		}
+		
+		if(!mPendingDownloads.contains(mCurrentPackage))
+		{
+			submitDownload(mCurrentPackage);
+		}
+		setStatus("Downloading " + mCurrentPackage.getDisplayName());
+	}
+	
+	/**
+	 * Asks the Listener to start the system's installer with the current
+	 * package.
+	 */
+	private void installPackage()
+	{
+		notifyProgressReset();
+		
+		File apkFile = mApkDownloader.getApkFile(mCurrentPackage);
+		if(!apkFile.exists())
+		{
+			Log.e(TAG, "File does not exist.");
+			setInstallState(mCurrentPackage, InstallState.QUEUED);
+			nextPackage();
+			return;
+		}
+		
+		setStatus("Installing " + mCurrentPackage.getDisplayName());
+		
+		if(mCurrentPackage.getQualifiedName().equals("edu.ucla.cens.Updater"))
+		{
+			SharedPreferences sharedPreferences = getSharedPreferences(Database.PACKAGE_PREFERENCES, Context.MODE_PRIVATE);
+			sharedPreferences.edit().putBoolean(Database.PREFERENCES_SELF_UPDATE, true).commit();
+		}
+		
+		setInstallState(mCurrentPackage, InstallState.AWAITING_INSTALL);
+		mRequest = Request.INSTALL;
+		mRequestFile = apkFile;
+		deliverRequest();
+	}
+	
+	/**
+	 * Queues the downloads for the current package and up to PREFETCH_DEPTH
+	 * packages after it. The downloads run one at a time in order, so the
+	 * next packages are downloaded while the current one is being installed.
+	 */
+	private void prefetchDownloads()
+	{
+		int lastIndex = Math.min(mCurrent + PREFETCH_DEPTH, mUpdates.size() - 1);
+		for(mNextDownload = Math.max(mNextDownload, mCurrent); mNextDownload <= lastIndex; mNextDownload++)
+		{
+			PackageInformation update = mUpdates.get(mNextDownload);
+			if((update.getInstallState() != InstallState.DOWNLOADED) &&
+					(update.getInstallState() != InstallState.VERIFIED))
+			{
+				submitDownload(update);
+			}
+		}
+	}
+	
+	/**
+	 * Queues the download of a package.
+	 * 
+	 * @param update The package to download.
+	 */
+	private void submitDownload(PackageInformation update)
+	{
+		mPendingDownloads.add(update);
+		mDownloadExecutor.execute(new PackageDownloader(mDownloadExecutor, update));
+	}
+	
+	/**
+	 * Records that a package is being downloaded.
+	 * 
+	 * @param update The package being downloaded.
+	 */
+	private void onDownloadStarted(PackageInformation update)
+	{
+		if(update.getInstallState() != InstallState.VERIFIED)
+		{
+			setInstallState(update, InstallState.DOWNLOADING);
+		}
+	}
+	
+	/**
+	 * Records the result of a download and, if it was for the current
+	 * package, continues on to installing it or skips it if the download
+	 * failed.
+	 * 
+	 * @param executor The executor the download was run on.
+	 * 
+	 * @param update The package that was downloaded.
+	 * 
+	 * @param result The result of the download.
+	 */
+	private void onDownloadFinished(ExecutorService executor, PackageInformation update, ApkDownloader.Result result)
+	{
+		if(update.getInstallState() != InstallState.VERIFIED)
+		{
+			setInstallState(update, (result == ApkDownloader.Result.COMPLETE) ? InstallState.DOWNLOADED : InstallState.QUEUED);
+		}
+		
+		// The download may be from a session that was stopped.
+		if((executor != mDownloadExecutor) || (!mRunning))
+		{
+			return;
+		}
+		mPendingDownloads.remove(update);
+		
+		if(result == ApkDownloader.Result.OUT_OF_DATE)
+		{
+			// Our list of updates is most likely out of date, so have it
+			// refreshed in the background.
+			UpdateScheduler.requestCheck(this);
+		}
+		
+		// Only the current package moves the session along, and not while
+		// it is waiting to be uninstalled.
+		if((update != mCurrentPackage) || (mRequest != Request.NONE))
+		{
+			return;
+		}
+		
+		if(result == ApkDownloader.Result.COMPLETE)
+		{
+			installPackage();
+		}
+		else
+		{
+			Log.e(TAG, "Aborting installer for " + update.getQualifiedName());
+			setStatus("Error while downloading " + update.getDisplayName());
+			nextPackage();
+		}
+	}
+	
+	/**
+	 * Verifies the update for a package that was just installed if the
+	 * installed version is at least as new as the update. The session moves
+	 * on once the installer returns, or skips the update when it gets to it
+	 * if it was installed some other way. Only the update in this session is
+	 * changed; the InstallTracker gets the same broadcast and removes the
+	 * update from the database.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 */
+	private void onPackageInstalled(String qualifiedName)
+	{
+		for(PackageInformation update : mUpdates)
+		{
+			if(update.getQualifiedName().equals(qualifiedName) &&
+					(update.getInstallState() != InstallState.VERIFIED))
+			{
+				if(InstallTracker.getInstalledVersion(this, qualifiedName) >= update.getVersion())
+				{
+					Log.i(TAG, "The system reported that the update for " + qualifiedName + " was installed.");
+					update.setInstallState(InstallState.VERIFIED);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Marks an update as installed and removes it from the database in the
+	 * background.
+	 * 
+	 * @param update The update that was installed.
+	 */
+	private void setVerified(PackageInformation update)
+	{
+		update.setInstallState(InstallState.VERIFIED);
+		
+		final String qualifiedName = update.getQualifiedName();
+		sDatabaseExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					mDatabase.removeUpdate(qualifiedName);
+				}
+				catch(SQLException e)
+				{
+					Log.e(TAG, "Unable to remove the installed update for " + qualifiedName, e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Records how far along an update is in the update right away and in the
+	 * database in the background.
+	 * 
+	 * @param update The update whose state changed.
+	 * 
+	 * @param installState The new state of the update.
+	 */
+	private void setInstallState(PackageInformation update, final InstallState installState)
+	{
+		if(update.getInstallState() != installState)
+		{
+			update.setInstallState(installState);
+			
+			final String qualifiedName = update.getQualifiedName();
+			sDatabaseExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						mDatabase.setInstallState(qualifiedName, installState);
+					}
+					catch(SQLException e)
+					{
+						Log.e(TAG, "Unable to save the install state of " + qualifiedName, e);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Asks the Listener, if there is one, to do whatever it has been asked to
+	 * do for the current package.
+	 */
+	private void deliverRequest()
+	{
+		Listener listener = mListener;
+		if(listener == null)
+		{
+			return;
+		}
+		
+		if(mRequest == Request.INSTALL)
+		{
+			listener.onInstallRequested(mRequestFile);
+		}
+		else if(mRequest == Request.UNINSTALL)
+		{
+			listener.onUninstallRequested(mCurrentPackage.getQualifiedName());
+		}
+	}
+	
+	/**
+	 * Updates the text describing what is being done and passes it on to the
+	 * Listener.
+	 * 
+	 * @param text The text describing what is being done.
+	 */
+	private void setStatus(String text)
+	{
+		mStatus = text;
+		
+		Listener listener = mListener;
+		if(listener != null)
+		{
+			listener.onStatusChanged(text);
+		}
+	}
+	
+	/**
+	 * Tells the Listener that any progress it has shown no longer applies.
+	 */
+	private void notifyProgressReset()
+	{
+		Listener listener = mListener;
+		if(listener != null)
+		{
+			listener.onProgressReset();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package edu.ucla.cens.Updater;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The set of changes to the database that reconciling a manifest from the
+ * server produced. The changes are collected while the manifest is read and
+ * are then applied all at once by {@link Database#applyManifest(ManifestDiff)}
+ * so that a check costs a single database transaction.
+ * 
+ * This doesn't have any actual connections to the database and is only used
+ * as a basic container.
+ * 
+ * @version 1.0
+ */
+public class ManifestDiff
+{
+	private boolean clearUpdates;
+	
+	private final List<PackageInformation> updatesToAdd;
+	private final List<String> updatesToRemove;
+	private final List<PackageDescription> managedToAdd;
+	private final List<String> managedToStop;
+	
+	/**
+	 * Creates an empty set of changes.
+	 */
+	public ManifestDiff()
+	{
+		clearUpdates = false;
+		
+		updatesToAdd = new LinkedList<PackageInformation>();
+		updatesToRemove = new LinkedList<String>();
+		managedToAdd = new LinkedList<PackageDescription>();
+		managedToStop = new LinkedList<String>();
+	}
+	
+	/**
+	 * Marks that all existing updates should be removed before any of the
+	 * other changes are applied.
+	 */
+	public void clearUpdates()
+	{
+		clearUpdates = true;
+	}
+	
+	/**
+	 * Adds or replaces the update for a package.
+	 * 
+	 * @param packageInformation The information about the update.
+	 */
+	public void addUpdate(PackageInformation packageInformation)
+	{
+		updatesToAdd.add(packageInformation);
+	}
+	
+	/**
+	 * Removes any update for a package.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 */
+	public void removeUpdate(String qualifiedName)
+	{
+		updatesToRemove.add(qualifiedName);
+	}
+	
+	/**
+	 * Begins managing a package.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 * 
+	 * @param displayName A user-friendly name for the package.
+	 */
+	public void addManaged(String qualifiedName, String displayName)
+	{
+		managedToAdd.add(new PackageDescription(qualifiedName, displayName));
+	}
+	
+	/**
+	 * Stops managing a package, which marks it as needing to be removed.
+	 * 
+	 * @param qualifiedName The qualified name of the package.
+	 */
+	public void stopManaging(String qualifiedName)
+	{
+		managedToStop.add(qualifiedName);
+	}
+	
+	/**
+	 * Returns whether or not all existing updates should be removed first.
+	 * 
+	 * @return Whether or not all existing updates should be removed.
+	 */
+	public boolean getClearUpdates()
+	{
+		return clearUpdates;
+	}
+	
+	/**
+	 * Returns the updates that should be added or replaced.
+	 * 
+	 * @return The updates that should be added or replaced.
+	 */
+	public List<PackageInformation> getUpdatesToAdd()
+	{
+		return updatesToAdd;
+	}
+	
+	/**
+	 * Returns the packages whose updates should be removed.
+	 * 
+	 * @return The qualified names of the packages whose updates should be
+	 * 		   removed.
+	 */
+	public List<String> getUpdatesToRemove()
+	{
+		return updatesToRemove;
+	}
+	
+	/**
+	 * Returns the packages that should begin being managed.
+	 * 
+	 * @return The packages that should begin being managed.
+	 */
+	public List<PackageDescription> getManagedToAdd()
+	{
+		return managedToAdd;
+	}
+	
+	/**
+	 * Returns the packages that should no longer be managed.
+	 * 
+	 * @return The qualified names of the packages that should no longer be
+	 * 		   managed.
+	 */
+	public List<String> getManagedToStop()
+	{
+		return managedToStop;
+	}
+	
+	/**
+	 * Returns whether or not there is anything to apply.
+	 * 
+	 * @return True if applying this would not change the database.
+	 */
+	public boolean isEmpty()
+	{
+		return (!clearUpdates) &&
+			updatesToAdd.isEmpty() &&
+			updatesToRemove.isEmpty() &&
+			managedToAdd.isEmpty() &&
+			managedToStop.isEmpty();
+	}
+	
+	/**
+	 * Summarizes the changes for logging.
+	 */
+	@Override
+	public String toString()
+	{
+		return "clear updates: " + clearUpdates +
+			", updates added: " + updatesToAdd.size() +
+			", updates removed: " + updatesToRemove.size() +
+			", newly managed: " + managedToAdd.size() +
+			", no longer managed: " + managedToStop.size();
+	}
+}
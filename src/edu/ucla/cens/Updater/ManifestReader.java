@@ -0,0 +1,368 @@
+package edu.ucla.cens.Updater;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.InvalidParameterException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.ucla.cens.Updater.PackageInformation.Action;
+import edu.ucla.cens.systemlog.Log;
+
+/**
+ * Reads the manifest sent back from the server directly from its stream. The
+ * manifest is a header of the form "managed=N" followed by a comma and a JSON
+ * array of package objects.
+ * 
+ * Only a single package object is held in memory at a time, so the amount of
+ * memory used doesn't depend on the size of the manifest.
+ * 
+ * @version 1.0
+ */
+public class ManifestReader
+{
+	private static final String TAG = "CENS.Updater.ManifestReader";
+	
+	// The header is only a few characters long, so anything longer than this
+	// can't be a valid response.
+	private static final int MAX_HEADER_LENGTH = 32;
+	
+	private static final int INITIAL_OBJECT_CAPACITY = 512;
+	
+	private final Reader mReader;
+	
+	// Reused for the text of each package object.
+	private final StringBuilder mObjectBuilder;
+	
+	private boolean mHeaderRead;
+	private boolean mArrayStarted;
+	private boolean mArrayFinished;
+	
+	/**
+	 * Creates a new reader around the response stream. The stream is not
+	 * read until the header is requested.
+	 * 
+	 * @param inputStream The stream of the server response.
+	 * 
+	 * @throws IOException Thrown if the stream's encoding isn't supported.
+	 */
+	public ManifestReader(InputStream inputStream) throws IOException
+	{
+		mReader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+		mObjectBuilder = new StringBuilder(INITIAL_OBJECT_CAPACITY);
+		
+		mHeaderRead = false;
+		mArrayStarted = false;
+		mArrayFinished = false;
+	}
+	
+	/**
+	 * Reads the header, everything before the first comma, from the response.
+	 * This must be called exactly once before any packages are read.
+	 * 
+	 * @return The header such as "managed=1".
+	 * 
+	 * @throws InvalidParameterException Thrown if the response has no header
+	 * 									 or it is too long to be valid.
+	 * 
+	 * @throws IOException Thrown if there is an error reading the response.
+	 */
+	public String readHeader() throws InvalidParameterException, IOException
+	{
+		if(mHeaderRead)
+		{
+			throw new IllegalStateException("The header has already been read.");
+		}
+		mHeaderRead = true;
+		
+		StringBuilder header = new StringBuilder(MAX_HEADER_LENGTH);
+		int currChar;
+		while((currChar = mReader.read()) != ',')
+		{
+			if(currChar == -1)
+			{
+				throw new InvalidParameterException("The server replied with an invalid response: " + header);
+			}
+			else if(header.length() >= MAX_HEADER_LENGTH)
+			{
+				throw new InvalidParameterException("The server replied with an invalid header: " + header);
+			}
+			// The old reader dropped line breaks, so we do the same.
+			else if((currChar != '\n') && (currChar != '\r'))
+			{
+				header.append((char) currChar);
+			}
+		}
+		
+		return header.toString();
+	}
+	
+	/**
+	 * Reads the next valid package from the response. Packages whose JSON or
+	 * information is invalid are logged and skipped as they always have been.
+	 * 
+	 * @return The next package in the response or null if there are no more
+	 * 		   packages.
+	 * 
+	 * @throws JSONException Thrown if the array of packages itself is
+	 * 						 malformed.
+	 * 
+	 * @throws IOException Thrown if there is an error reading the response.
+	 */
+	public PackageInformation nextPackage() throws JSONException, IOException
+	{
+		if(!mHeaderRead)
+		{
+			throw new IllegalStateException("The header must be read first.");
+		}
+		
+		String objectText;
+		while((objectText = nextObject()) != null)
+		{
+			try
+			{
+				return toPackageInformation(new JSONObject(objectText));
+			}
+			catch(JSONException e)
+			{
+				Log.e(TAG, "Malformed JSON data; skipping package: " + objectText, e);
+			}
+			catch(IllegalArgumentException e)
+			{
+				Log.e(TAG, "Invalid package information.", e);
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Closes the underlying stream.
+	 */
+	public void close()
+	{
+		try
+		{
+			mReader.close();
+		}
+		catch(IOException e)
+		{
+			Log.e(TAG, "Error while closing the response stream.", e);
+		}
+	}
+	
+	/**
+	 * Reads the text of the next object in the array of packages.
+	 * 
+	 * @return The text of the next object or null if the array has ended.
+	 * 
+	 * @throws JSONException Thrown if the array is malformed.
+	 * 
+	 * @throws IOException Thrown if there is an error reading the response.
+	 */
+	private String nextObject() throws JSONException, IOException
+	{
+		if(mArrayFinished)
+		{
+			return null;
+		}
+		
+		int currChar = nextNonWhitespace();
+		if(!mArrayStarted)
+		{
+			if(currChar != '[')
+			{
+				throw new JSONException("The list of packages must be a JSON array.");
+			}
+			mArrayStarted = true;
+			
+			currChar = nextNonWhitespace();
+			if(currChar == ']')
+			{
+				mArrayFinished = true;
+				return null;
+			}
+		}
+		else if(currChar == ',')
+		{
+			currChar = nextNonWhitespace();
+		}
+		else if(currChar == ']')
+		{
+			mArrayFinished = true;
+			return null;
+		}
+		else
+		{
+			throw new JSONException("Expected ',' or ']' between packages but found: " + describe(currChar));
+		}
+		
+		if(currChar != '{')
+		{
+			throw new JSONException("Each package must be a JSON object but found: " + describe(currChar));
+		}
+		
+		// Copy the object up to its matching brace, ignoring any braces that
+		// are inside of strings.
+		mObjectBuilder.setLength(0);
+		mObjectBuilder.append('{');
+		int depth = 1;
+		boolean inString = false;
+		boolean escaped = false;
+		while(depth > 0)
+		{
+			currChar = mReader.read();
+			if(currChar == -1)
+			{
+				throw new JSONException("The response ended in the middle of a package.");
+			}
+			mObjectBuilder.append((char) currChar);
+			
+			if(inString)
+			{
+				if(escaped)
+				{
+					escaped = false;
+				}
+				else if(currChar == '\\')
+				{
+					escaped = true;
+				}
+				else if(currChar == '"')
+				{
+					inString = false;
+				}
+			}
+			else if(currChar == '"')
+			{
+				inString = true;
+			}
+			else if(currChar == '{')
+			{
+				depth++;
+			}
+			else if(currChar == '}')
+			{
+				depth--;
+			}
+		}
+		
+		return mObjectBuilder.toString();
+	}
+	
+	/**
+	 * Reads characters until one that isn't whitespace is found.
+	 * 
+	 * @return The next non-whitespace character or -1 if the stream ended.
+	 * 
+	 * @throws IOException Thrown if there is an error reading the response.
+	 */
+	private int nextNonWhitespace() throws IOException
+	{
+		int currChar;
+		do
+		{
+			currChar = mReader.read();
+		}
+		while((currChar != -1) && Character.isWhitespace((char) currChar));
+		
+		return currChar;
+	}
+	
+	/**
+	 * Describes a character for an error message.
+	 * 
+	 * @param currChar The character or -1 for the end of the stream.
+	 * 
+	 * @return A description of the character.
+	 */
+	private static String describe(int currChar)
+	{
+		return (currChar == -1) ? "the end of the response" : "'" + ((char) currChar) + "'";
+	}
+	
+	/**
+	 * Converts a single package object from the manifest into a sanitized
+	 * PackageInformation object.
+	 * 
+	 * @param jsonPackageInfo The package object from the manifest.
+	 * 
+	 * @return The package's information.
+	 * 
+	 * @throws JSONException Thrown if a required value is missing.
+	 * 
+	 * @throws IllegalArgumentException Thrown if any of the values are
+	 * 									invalid.
+	 */
+	private static PackageInformation toPackageInformation(JSONObject jsonPackageInfo) throws JSONException, IllegalArgumentException
+	{
+		PackageInformation.Action action = null;
+		String sAction = jsonPackageInfo.getString("action");
+		if(sAction.toLowerCase().equals("clean"))
+		{
+			action = Action.CLEAN;
+		}
+		else if(sAction.toLowerCase().equals("update"))
+		{
+			action = Action.UPDATE;
+		}
+		else
+		{
+			Log.e(TAG, "Invalid 'Action' value. Defaulting to update.");
+			action = Action.UPDATE;
+		}
+		
+		// The hash and size are optional, so older servers still work. They
+		// are only hints for checking the download, so one that is null or
+		// invalid is treated as missing rather than dropping the package.
+		String sha256 = null;
+		if(!jsonPackageInfo.isNull("sha256"))
+		{
+			sha256 = jsonPackageInfo.getString("sha256");
+			if(!PackageInformation.isValidSha256(sha256))
+			{
+				Log.e(TAG, "Ignoring the invalid SHA-256 hash for " + jsonPackageInfo.optString("package") + ": " + sha256);
+				sha256 = null;
+			}
+		}
+		long size = jsonPackageInfo.optLong("size", PackageInformation.UNKNOWN_SIZE);
+		if(!PackageInformation.isValidSize(size))
+		{
+			Log.e(TAG, "Ignoring the invalid size for " + jsonPackageInfo.optString("package") + ": " + size);
+			size = PackageInformation.UNKNOWN_SIZE;
+		}
+		
+		PackageInformation packageInformation = 
+			new PackageInformation(jsonPackageInfo.getString("package"),
+								   jsonPackageInfo.getString("release"),
+								   jsonPackageInfo.getString("name"),
+								   jsonPackageInfo.getInt("ver"),
+								   jsonPackageInfo.getString("url"),
+								   action,
+								   sha256,
+								   size);
+		
+		// The patch is optional as well, and it is ignored if there is no
+		// hash with which to verify the rebuilt package. A bad patch only
+		// means that the whole package is downloaded, so it must never cause
+		// the package to be dropped.
+		JSONObject jsonPatch = jsonPackageInfo.optJSONObject("patch");
+		if((jsonPatch != null) && (sha256 != null))
+		{
+			try
+			{
+				packageInformation.setPatch(jsonPatch.optInt("from", -1), jsonPatch.optString("url", null));
+			}
+			catch(IllegalArgumentException e)
+			{
+				Log.e(TAG, "Ignoring the invalid patch for " + packageInformation.getQualifiedName() + ".", e);
+			}
+		}
+		
+		return packageInformation;
+	}
+}
@@ -24,12 +24,39 @@ public class PackageInformation extends PackageDescription
 	private String url;
 	private Action action;
 	
+	private String sha256;
+	private long size;
+	
+	private int patchFromVersion;
+	private String patchUrl;
+	
 	private boolean toBeApplied;
+	private InstallState installState;
 
 	public enum Action { CLEAN, UPDATE };
 	
 	/**
-	 * Builds an object and is the only way to set the values of this object.
+	 * How far along the installation of an update is. An update starts out
+	 * queued, is downloaded, and then waits for the user to install it. Once
+	 * the new version is seen to be installed it is verified and the update
+	 * is removed.
+	 */
+	public enum InstallState { QUEUED, DOWNLOADING, DOWNLOADED, AWAITING_INSTALL, VERIFIED };
+	
+	/**
+	 * The size of a package whose size wasn't given.
+	 */
+	public static final long UNKNOWN_SIZE = -1;
+	
+	/**
+	 * The version a patch applies to when there is no patch.
+	 */
+	public static final int NO_PATCH = -1;
+	
+	private static final int SHA256_HEX_LENGTH = 64;
+	
+	/**
+	 * Builds an object without a hash or size for the package.
 	 * 
 	 * @param qualifiedName The qualified name of the package such as
 	 * 						"edu.ucla.cens.Updater" that is used by the system
@@ -51,6 +78,39 @@ public class PackageInformation extends PackageDescription
 	 * 									attribute.
 	 */
 	public PackageInformation(String qualifiedName, String releaseName, String displayName, int version, String url, Action action) throws IllegalArgumentException
+	{
+		this(qualifiedName, releaseName, displayName, version, url, action, null, UNKNOWN_SIZE);
+	}
+	
+	/**
+	 * Builds an object and is the only way to set the values of this object.
+	 * 
+	 * @param qualifiedName The qualified name of the package such as
+	 * 						"edu.ucla.cens.Updater" that is used by the system
+	 * 						to differentiate different packages.
+	 * 
+	 * @param displayName The name that should be displayed to the user when
+	 * 					  this package is shown such as "Updater".
+	 * 
+	 * @param version The version of this application as managed by the
+	 * 				  developers and updater server.
+	 * 
+	 * @param url The URL where this package can be downloaded from.
+	 * 
+	 * @param action The action to be taken when installing this app over an
+	 * 				 existing version of the same app.
+	 * 
+	 * @param sha256 The SHA-256 hash of the package as a hexadecimal string
+	 * 				 or null if it isn't known.
+	 * 
+	 * @param size The size of the package in bytes or UNKNOWN_SIZE if it
+	 * 			   isn't known.
+	 * 
+	 * @throws IllegalArgumentException Thrown if any of the values are null
+	 * 									or invalid for their respective	
+	 * 									attribute.
+	 */
+	public PackageInformation(String qualifiedName, String releaseName, String displayName, int version, String url, Action action, String sha256, long size) throws IllegalArgumentException
 	{
 		super(qualifiedName, displayName);
 
@@ -67,6 +127,14 @@ public class PackageInformation extends PackageDescription
 		{
 			throw new IllegalArgumentException("Action is null.");
 		}
+		else if((sha256 != null) && (!isValidSha256(sha256)))
+		{
+			throw new IllegalArgumentException("Invalid SHA-256 hash: " + sha256);
+		}
+		else if(!isValidSize(size))
+		{
+			throw new IllegalArgumentException("Invalid size: " + size);
+		}
 		
 		try
 		{
@@ -81,8 +149,14 @@ public class PackageInformation extends PackageDescription
 		this.version = version;
 		this.url = url;
 		this.action = action;
+		this.sha256 = (sha256 == null) ? null : sha256.toLowerCase();
+		this.size = size;
+		
+		patchFromVersion = NO_PATCH;
+		patchUrl = null;
 		
 		toBeApplied = false;
+		installState = InstallState.QUEUED;
 	}
 	
 	/**
@@ -129,6 +203,87 @@ public class PackageInformation extends PackageDescription
 		return action;
 	}
 	
+	/**
+	 * Returns the SHA-256 hash that the downloaded package must have.
+	 * 
+	 * @return The lowercase hexadecimal SHA-256 hash of the package or null
+	 * 		   if it isn't known.
+	 */
+	public String getSha256()
+	{
+		return sha256;
+	}
+	
+	/**
+	 * Returns the size that the downloaded package must have.
+	 * 
+	 * @return The size of the package in bytes or UNKNOWN_SIZE if it isn't
+	 * 		   known.
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+	
+	/**
+	 * Sets the patch that rebuilds this package from an older version that is
+	 * already installed. Patches are only used for packages with a SHA-256
+	 * hash so that the rebuilt package can be verified.
+	 * 
+	 * @param fromVersion The version of the installed package to which the
+	 * 					  patch applies.
+	 * 
+	 * @param url The URL where the patch can be downloaded from.
+	 * 
+	 * @throws IllegalArgumentException Thrown if the version or URL is
+	 * 									invalid.
+	 */
+	public void setPatch(int fromVersion, String url) throws IllegalArgumentException
+	{
+		if(fromVersion < 0)
+		{
+			throw new IllegalArgumentException("Invalid patch version: " + fromVersion);
+		}
+		else if(url == null)
+		{
+			throw new IllegalArgumentException("Patch URL is null.");
+		}
+		
+		try
+		{
+			new URL(url);
+		}
+		catch(MalformedURLException e)
+		{
+			throw new IllegalArgumentException("Invalid patch URL: " + url);
+		}
+		
+		patchFromVersion = fromVersion;
+		patchUrl = url;
+	}
+	
+	/**
+	 * Returns the version of the installed package to which the patch
+	 * applies.
+	 * 
+	 * @return The version the patch applies to or NO_PATCH if there is no
+	 * 		   patch.
+	 */
+	public int getPatchFromVersion()
+	{
+		return patchFromVersion;
+	}
+	
+	/**
+	 * Returns the URL where the patch can be downloaded from.
+	 * 
+	 * @return The URL of the patch or null if there is no patch.
+	 */
+	public String getPatchUrl()
+	{
+		return patchUrl;
+	}
+	
 	/**
 	 * Sets whether or not this update should be applied.
 	 * 
@@ -149,4 +304,80 @@ public class PackageInformation extends PackageDescription
 	{
 		return toBeApplied;
 	}
+	
+	/**
+	 * Sets how far along the installation of this update is.
+	 * 
+	 * @param value The state of the installation of this update.
+	 */
+	public void setInstallState(InstallState value)
+	{
+		installState = value;
+	}
+	
+	/**
+	 * Returns how far along the installation of this update is. If this
+	 * value has not been set it will default to QUEUED.
+	 * 
+	 * @return The state of the installation of this update.
+	 */
+	public InstallState getInstallState()
+	{
+		return installState;
+	}
+	
+	/**
+	 * Returns whether or not a String can be used as the SHA-256 hash of a
+	 * package.
+	 * 
+	 * @param sha256 The hash as a hexadecimal string.
+	 * 
+	 * @return True if it is 64 hexadecimal digits in either case; false,
+	 * 		   otherwise.
+	 */
+	public static boolean isValidSha256(String sha256)
+	{
+		return (sha256 != null) && isHex(sha256, SHA256_HEX_LENGTH);
+	}
+	
+	/**
+	 * Returns whether or not a number can be used as the size of a package.
+	 * 
+	 * @param size The size in bytes.
+	 * 
+	 * @return True if it isn't negative or is UNKNOWN_SIZE; false, otherwise.
+	 */
+	public static boolean isValidSize(long size)
+	{
+		return (size >= 0) || (size == UNKNOWN_SIZE);
+	}
+	
+	/**
+	 * Returns whether or not a String is made up of exactly 'length' 
+	 * hexadecimal digits.
+	 * 
+	 * @param value The String to check.
+	 * 
+	 * @param length The number of digits it must have.
+	 * 
+	 * @return True if the String is made up of 'length' hexadecimal digits;
+	 * 		   false, otherwise.
+	 */
+	private static boolean isHex(String value, int length)
+	{
+		if(value.length() != length)
+		{
+			return false;
+		}
+		
+		for(int i = 0; i < length; i++)
+		{
+			if(Character.digit(value.charAt(i), 16) == -1)
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+package edu.ucla.cens.Updater;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps the latest progress of a task and decides when it is worth telling
+ * anyone about it. A new report is only due when the progress moves to a new
+ * step or when enough time has passed since the last report, so the number
+ * of reports depends on the number of steps and not on how often the
+ * progress is updated. Readers always get the latest values.
+ * 
+ * @version 1.0
+ */
+public class ProgressReporter
+{
+	/**
+	 * The longest that the latest values will go unreported while the
+	 * progress is changing within a single step.
+	 */
+	private static final long MIN_REPORT_INTERVAL = 500;
+	
+	private final int mMax;
+	
+	private int mCurrent;
+	private int mTotal;
+	private int mStep;
+	
+	private int mReportedStep;
+	private long mLastReportTime;
+	
+	/**
+	 * Creates a reporter for progress with the given number of steps.
+	 * 
+	 * @param max The number of steps in the progress, such as the maximum of
+	 * 			  a progress bar.
+	 */
+	public ProgressReporter(int max)
+	{
+		mMax = max;
+		reset();
+	}
+	
+	/**
+	 * Clears the progress so that this can be used for a new task.
+	 */
+	public synchronized void reset()
+	{
+		mCurrent = 0;
+		mTotal = 0;
+		mStep = 0;
+		
+		mReportedStep = -1;
+		mLastReportTime = 0;
+	}
+	
+	/**
+	 * Records the latest progress and returns whether or not it should be
+	 * reported.
+	 * 
+	 * @param current The amount of the task that is done.
+	 * 
+	 * @param total The total amount of the task.
+	 * 
+	 * @return True if the progress reached a new step or hasn't been
+	 * 		   reported for a while; false, otherwise.
+	 */
+	public synchronized boolean update(int current, int total)
+	{
+		mCurrent = current;
+		mTotal = total;
+		mStep = (total > 0) ? (int) (((long) current * mMax) / total) : 0;
+		
+		long now = SystemClock.uptimeMillis();
+		if((mStep != mReportedStep) || (now - mLastReportTime >= MIN_REPORT_INTERVAL))
+		{
+			mReportedStep = mStep;
+			mLastReportTime = now;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the latest step of the progress.
+	 * 
+	 * @return A value between 0 and the maximum.
+	 */
+	public synchronized int getStep()
+	{
+		return mStep;
+	}
+	
+	/**
+	 * Returns the latest amount of the task that is done.
+	 * 
+	 * @return The amount of the task that is done.
+	 */
+	public synchronized int getCurrent()
+	{
+		return mCurrent;
+	}
+	
+	/**
+	 * Returns the latest total amount of the task.
+	 * 
+	 * @return The total amount of the task.
+	 */
+	public synchronized int getTotal()
+	{
+		return mTotal;
+	}
+}
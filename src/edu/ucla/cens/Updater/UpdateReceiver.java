@@ -103,8 +103,7 @@ public class UpdateReceiver extends BroadcastReceiver implements Runnable
 		
 		try
 		{
-			Updater updater = new Updater(mContext);
-			updater.doUpdate();
+			UpdateScheduler.checkForUpdates(mContext);
 		}
 		finally
 		{
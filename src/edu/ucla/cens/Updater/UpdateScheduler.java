@@ -0,0 +1,208 @@
+package edu.ucla.cens.Updater;
+
+import java.util.concurrent.CountDownLatch;
+
+import android.content.Context;
+import android.os.SystemClock;
+import edu.ucla.cens.systemlog.Log;
+
+/**
+ * Coordinates update checks for the whole process. Only one check is ever
+ * running at a time; anyone who asks for a check while one is running waits
+ * for it and receives its result instead of starting their own. If a check
+ * has recently succeeded, its result is reused instead of checking again.
+ * 
+ * @version 1.0
+ */
+public class UpdateScheduler
+{
+	private static final String TAG = "CENS.Updater.UpdateScheduler";
+	
+	/**
+	 * How long the result of a successful check is reused before a new
+	 * check will be made.
+	 */
+	private static final long FRESHNESS_WINDOW = 30 * 1000;
+	
+	/**
+	 * A check that is currently running which others may wait on.
+	 */
+	private static class InFlightCheck
+	{
+		private final CountDownLatch mFinished = new CountDownLatch(1);
+		private volatile boolean mResult = false;
+		
+		/**
+		 * Records the result of the check and releases everyone waiting on
+		 * it.
+		 * 
+		 * @param result The result of the check.
+		 */
+		void finish(boolean result)
+		{
+			mResult = result;
+			mFinished.countDown();
+		}
+		
+		/**
+		 * Waits for the check to finish.
+		 * 
+		 * @return The result of the check or false if we were interrupted
+		 * 		   while waiting.
+		 */
+		boolean await()
+		{
+			try
+			{
+				mFinished.await();
+				return mResult;
+			}
+			catch(InterruptedException e)
+			{
+				Log.e(TAG, "Interrupted while waiting for an update check.", e);
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+	
+	private static final Object sLock = new Object();
+	
+	private static InFlightCheck sInFlightCheck = null;
+	private static long sLastSuccess = 0;
+	
+	/**
+	 * This class only has static methods.
+	 */
+	private UpdateScheduler()
+	{
+	}
+	
+	/**
+	 * Checks the server for updates, blocking until the check is done. If a
+	 * check is already running, this waits for it instead and returns its
+	 * result. If a check succeeded within the last few seconds, this returns
+	 * immediately.
+	 * 
+	 * This must not be called on the UI thread.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @return The result of {@link Updater#doUpdate()} for the check that
+	 * 		   this call used.
+	 */
+	public static boolean checkForUpdates(Context context)
+	{
+		return checkForUpdates(context, false);
+	}
+	
+	/**
+	 * Checks the server for updates, blocking until the check is done. If a
+	 * check is already running, this waits for it instead and returns its
+	 * result.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @param force Whether to check even if a check succeeded within the
+	 * 				last few seconds.
+	 * 
+	 * @return The result of {@link Updater#doUpdate()} for the check that
+	 * 		   this call used.
+	 */
+	private static boolean checkForUpdates(Context context, boolean force)
+	{
+		InFlightCheck check;
+		synchronized(sLock)
+		{
+			if(sInFlightCheck != null)
+			{
+				Log.i(TAG, "Joining the update check that is already running.");
+				check = sInFlightCheck;
+			}
+			else if((!force) && (sLastSuccess != 0) && (SystemClock.elapsedRealtime() - sLastSuccess < FRESHNESS_WINDOW))
+			{
+				Log.i(TAG, "An update check just finished, so another one won't be made.");
+				return true;
+			}
+			else
+			{
+				sInFlightCheck = new InFlightCheck();
+				check = null;
+			}
+		}
+		
+		if(check == null)
+		{
+			return runCheck(context);
+		}
+		
+		return check.await();
+	}
+	
+	/**
+	 * Asks for a check to be made in the background and returns immediately.
+	 * If a check is already running, nothing more is done since it will 
+	 * pick up the latest state of the server. Otherwise, the check is made
+	 * even if one just finished, since whoever asked for it found that the
+	 * last one is already out of date.
+	 * 
+	 * @param context The Context in which this application is running.
+	 */
+	public static void requestCheck(Context context)
+	{
+		synchronized(sLock)
+		{
+			if(sInFlightCheck != null)
+			{
+				Log.i(TAG, "An update check is already running, so another one won't be requested.");
+				return;
+			}
+		}
+		
+		final Context appContext = context.getApplicationContext();
+		Thread checker = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				checkForUpdates(appContext, true);
+			}
+		});
+		checker.setName("Update Check");
+		checker.start();
+	}
+	
+	/**
+	 * Runs the check that was just registered as in flight and then 
+	 * publishes its result to everyone who joined it. The lock is not held
+	 * while the check runs.
+	 * 
+	 * @param context The Context in which this application is running.
+	 * 
+	 * @return The result of the check.
+	 */
+	private static boolean runCheck(Context context)
+	{
+		boolean result = false;
+		try
+		{
+			result = (new Updater(context.getApplicationContext())).doUpdate();
+		}
+		finally
+		{
+			InFlightCheck check;
+			synchronized(sLock)
+			{
+				check = sInFlightCheck;
+				sInFlightCheck = null;
+				if(result)
+				{
+					sLastSuccess = SystemClock.elapsedRealtime();
+				}
+			}
+			check.finish(result);
+		}
+		
+		return result;
+	}
+}
@@ -1,19 +1,24 @@
 package edu.ucla.cens.Updater;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.security.InvalidParameterException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -23,12 +28,9 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.SQLException;
+import android.preference.PreferenceManager;
 import android.telephony.TelephonyManager;
-import edu.ucla.cens.Updater.PackageInformation.Action;
 import edu.ucla.cens.systemlog.Log;
 
 /**
@@ -56,9 +58,43 @@ public class Updater
 	 */
 	public static final String PREFERENCE_GROUP_NAME = "groupName";
 	
+	/**
+	 * Whether or not updates should be downloaded in the background on
+	 * unmetered networks as soon as they are found. This is kept in the
+	 * default preferences so that it can be set in the preferences screen.
+	 */
+	public static final String PREFERENCE_PREFETCH_UPDATES = "prefetchUpdates";
+	
+	// Prefixes for the per-group validators of the last manifest we applied.
+	// The group name is appended to each of them.
+	private static final String PREFERENCE_MANIFEST_ETAG = "manifestETag.";
+	private static final String PREFERENCE_MANIFEST_LAST_MODIFIED = "manifestLastModified.";
+	private static final String PREFERENCE_MANIFEST_INVENTORY = "manifestInventory.";
+	
+	// When the server last rejected a POST request. Until the retry interval
+	// has passed, we go straight to the GET request.
+	private static final String PREFERENCE_POST_UNSUPPORTED = "postUnsupportedSince";
+	private static final long POST_RETRY_INTERVAL = 24 * 60 * 60 * 1000;
+	
+	// The response codes with which an older server rejects a POST request.
+	private static final Set<Integer> POST_UNSUPPORTED_CODES = 
+		new HashSet<Integer>(Arrays.asList(
+			HttpURLConnection.HTTP_NOT_FOUND,
+			HttpURLConnection.HTTP_BAD_METHOD,
+			HttpURLConnection.HTTP_LENGTH_REQUIRED,
+			HttpURLConnection.HTTP_UNSUPPORTED_TYPE,
+			HttpURLConnection.HTTP_NOT_IMPLEMENTED));
+	
 	private Context mContext;
 	private Database mDatabase;
 	
+	// The validators returned with the response currently being processed.
+	// They are only saved once the response has been successfully applied.
+	private String mGroupName;
+	private String mResponseETag;
+	private String mResponseLastModified;
+	private int mRequestInventory;
+	
 	/**
 	 * Sets up this Updater.
 	 * 
@@ -69,7 +105,7 @@ public class Updater
 		Log.i(TAG, "Creating a new Updater object.");
 		
 		mContext = context;
-		mDatabase = new Database(context);
+		mDatabase = Database.getInstance(context);
 		
 		Log.initialize(context, Database.LOGGER_APP_NAME);
 	}
@@ -77,7 +113,8 @@ public class Updater
 	/**
 	 * Checks the server for updates. If any are found, they are added to the
 	 * database, true is returned, and a notification is sent. Otherwise, 
-	 * false is returned.
+	 * false is returned. If the user has asked for it, the updates are also
+	 * downloaded before the notification is sent.
 	 * 
 	 * @return True if any updates were found and successfully added to the
 	 * 		   database; false, otherwise.
@@ -88,12 +125,34 @@ public class Updater
 		{
 			Log.i(TAG, "Beginning update check.");
 			
-			String response = doGetRequest();
+			// Take a new snapshot of what is installed for this cycle.
+			InstalledPackagesSnapshot.invalidate();
+			
+			ManifestReader response = doRequest();
 			
-			Log.i(TAG, "Got response: " + response);
+			// The server told us that nothing has changed since the last
+			// manifest we applied, so there is nothing to parse or store.
+			if(response == null)
+			{
+				Log.i(TAG, "The manifest has not been modified since the last check.");
+				return true;
+			}
+			
+			boolean updatesFound;
+			try
+			{
+				updatesFound = parseResponse(response);
+			}
+			finally
+			{
+				response.close();
+			}
+			saveManifestValidators();
 			
-			if(parseResponse(response))
+			if(updatesFound)
 			{
+				prefetchUpdates();
+				
 				Log.i(TAG, "Updates were found. Notifying the user.");
 				
 				NotificationManager notificationManager = (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -127,15 +186,80 @@ public class Updater
 		{
 			Log.e(TAG, "Error parsing the JSON in the server response.", e);
 		}
+		catch(SQLException e)
+		{
+			Log.e(TAG, "Error while applying the server response to the database.", e);
+		}
 		
 		return false;
 	}
 	
+	/**
+	 * If the user has asked for it and we are on an unmetered network, 
+	 * downloads the APKs for all of the updates that will be applied so that
+	 * they are ready to be installed when the user reviews them. Anything
+	 * that isn't finished is downloaded, or resumed, by the Installer.
+	 * 
+	 * This runs as part of the update check, so it is covered by the same
+	 * wake lock.
+	 */
+	private void prefetchUpdates()
+	{
+		if(!PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean(PREFERENCE_PREFETCH_UPDATES, false))
+		{
+			return;
+		}
+		
+		PackageInformation[] updates = mDatabase.getUpdates();
+		if(updates == null)
+		{
+			Log.e(TAG, "Unable to get the updates to prefetch.");
+			return;
+		}
+		
+		ApkDownloader downloader = new ApkDownloader(mContext);
+		for(PackageInformation update : updates)
+		{
+			if(!update.getToBeApplied())
+			{
+				continue;
+			}
+			
+			// Check before each package in case the network has changed.
+			if(!ApkDownloader.isOnUnmeteredNetwork(mContext))
+			{
+				Log.i(TAG, "Not on an unmetered network, so no more updates will be prefetched.");
+				return;
+			}
+			
+			Log.i(TAG, "Prefetching the update for %s", update.getQualifiedName());
+			ApkDownloader.Result result = downloader.download(update, null);
+			if(result != ApkDownloader.Result.COMPLETE)
+			{
+				Log.w(TAG, "Failed to prefetch the update for " + update.getQualifiedName() + ": " + result);
+			}
+			else if(update.getInstallState() == PackageInformation.InstallState.QUEUED)
+			{
+				mDatabase.setInstallState(update.getQualifiedName(), PackageInformation.InstallState.DOWNLOADED);
+			}
+		}
+	}
+	
 	/**
 	 * Queries the server for all applicable package information and returns
 	 * the response without checking it at all.
 	 * 
-	 * @return A String representing the response from the server.
+	 * The inventory of managed packages is POSTed to the server as a 
+	 * compressed body. If the server doesn't support that, we fall back to
+	 * sending it in the query string of a GET request and don't try POSTing
+	 * again for a while.
+	 * 
+	 * If the same inventory was already sent for this group, the validators
+	 * of the last applied manifest are sent along with the request, and the
+	 * server may reply that the manifest has not been modified.
+	 * 
+	 * @return A reader over the response from the server or null if the
+	 * 		   server replied that the manifest has not been modified.
 	 * 
 	 * @throws MalformedURLException Thrown if the URL being used to request
 	 * 								 information from the server is invalid.
@@ -143,49 +267,75 @@ public class Updater
 	 * @throws IOException Thrown if there is an error while sending or
 	 * 					   receiving data from the server.
 	 */
-	private String doGetRequest() throws MalformedURLException, IOException
+	private ManifestReader doRequest() throws MalformedURLException, IOException
 	{
-		// Begin building the request URL.
-		StringBuilder urlBuilder = new StringBuilder(SERVER_URL);
-
-		// Get the device's identifier and add it to the URL.
+		// Get the device's identifier.
 		String identifier = 
 			((TelephonyManager) 
 				mContext
 					.getSystemService(Context.TELEPHONY_SERVICE))
 					.getDeviceId();
-		urlBuilder.append(identifier);
 		
-		// Begin building the parameter map.
-		Map<String, String> parameters = new HashMap<String, String>();
+		// Get the group.
+		SharedPreferences preferences = 
+			mContext
+				.getSharedPreferences(
+					Database.PACKAGE_PREFERENCES, 
+					Context.MODE_PRIVATE);
+		String groupName = 
+			preferences
+				.getString(
+					PREFERENCE_GROUP_NAME, 
+					mContext.getString(R.string.default_group));
 		
-		// Get the package manager.
-		PackageManager packageManager = mContext.getPackageManager();
+		String inventory = buildInventory().toString();
 		
-		// Get a connection to the database and retrieve the list of managed
-		// packages.
-		Database db = new Database(mContext);
-		LinkedList<String> managed = db.getManaged();
+		mGroupName = groupName;
+		mRequestInventory = inventory.hashCode();
+		
+		long postUnsupportedSince = preferences.getLong(PREFERENCE_POST_UNSUPPORTED, 0);
+		if(System.currentTimeMillis() - postUnsupportedSince >= POST_RETRY_INTERVAL)
+		{
+			HttpURLConnection connection = doPostRequest(identifier, groupName, inventory, preferences);
+			if(POST_UNSUPPORTED_CODES.contains(connection.getResponseCode()))
+			{
+				Log.i(TAG, "The server doesn't support POST requests (%d); falling back to GET.", connection.getResponseCode());
+				connection.disconnect();
+				preferences.edit().putLong(PREFERENCE_POST_UNSUPPORTED, System.currentTimeMillis()).commit();
+			}
+			else
+			{
+				return readResponse(connection);
+			}
+		}
+		
+		return readResponse(doGetRequest(identifier, groupName, inventory, preferences));
+	}
+	
+	/**
+	 * Builds a JSON object where each key represents a package we are
+	 * managing and its value is its installed version or -1 if it isn't
+	 * installed.
+	 * 
+	 * @return The inventory of the managed packages.
+	 */
+	private JSONObject buildInventory()
+	{
+		// Get what is installed.
+		InstalledPackagesSnapshot installedPackages = 
+			InstalledPackagesSnapshot.getInstance(mContext);
+		
+		// Retrieve the list of managed packages.
+		LinkedList<String> managed = mDatabase.getManaged();
 		ListIterator<String> managedIter = managed.listIterator();
 		
-		// Build a JSON object where each key represents a package and its 
-		// value is its version.
 		JSONObject results = new JSONObject();
 		while(managedIter.hasNext())
 		{
 			String currPackage = managedIter.next();
 			try
 			{
-				try
-				{
-					PackageInfo packageInfo = 
-						packageManager.getPackageInfo(currPackage, 0);
-					results.put(currPackage, packageInfo.versionCode);
-				}
-				catch(NameNotFoundException e)
-				{
-					results.put(currPackage, -1);
-				}
+				results.put(currPackage, installedPackages.getVersionCode(currPackage));
 			}
 			catch(JSONException e)
 			{
@@ -194,19 +344,100 @@ public class Updater
 					"Could not add new record to JSON query: " + currPackage);
 			}
 		}
-		parameters.put("packages", results.toString());
 		
-		// Get the group and add it to the parameters.
-		SharedPreferences preferences = 
-			mContext
-				.getSharedPreferences(
-					Database.PACKAGE_PREFERENCES, 
-					Context.MODE_PRIVATE);
-		String groupName = 
-			preferences
-				.getString(
-					PREFERENCE_GROUP_NAME, 
-					mContext.getString(R.string.default_group));
+		return results;
+	}
+	
+	/**
+	 * Sends the inventory and group to the server as a gzip-compressed JSON
+	 * body.
+	 * 
+	 * @param identifier The device's identifier.
+	 * 
+	 * @param groupName The group to which this device belongs.
+	 * 
+	 * @param inventory The JSON inventory built by {@link #buildInventory()}.
+	 * 
+	 * @param preferences The preferences holding the manifest validators.
+	 * 
+	 * @return The connection, which has sent its request but whose response
+	 * 		   hasn't been read yet.
+	 * 
+	 * @throws MalformedURLException Thrown if the URL being used to request
+	 * 								 information from the server is invalid.
+	 * 
+	 * @throws IOException Thrown if there is an error while sending the
+	 * 					   request.
+	 */
+	private HttpURLConnection doPostRequest(String identifier, String groupName, String inventory, SharedPreferences preferences) throws MalformedURLException, IOException
+	{
+		// Build the body. The inventory is embedded as a raw JSON object.
+		StringBuilder bodyBuilder = new StringBuilder(inventory.length() + groupName.length() + 32);
+		bodyBuilder.append("{\"group\":").append(JSONObject.quote(groupName));
+		bodyBuilder.append(",\"packages\":").append(inventory).append('}');
+		
+		ByteArrayOutputStream compressedBody = new ByteArrayOutputStream();
+		GZIPOutputStream gzipStream = new GZIPOutputStream(compressedBody);
+		gzipStream.write(bodyBuilder.toString().getBytes("UTF-8"));
+		gzipStream.close();
+		
+		Log.i(
+			TAG, 
+			"Sending request for updates with a POST request of " + 
+				compressedBody.size() + " bytes for group: " + groupName);
+		
+		HttpURLConnection connection = 
+			(HttpURLConnection) (new URL(SERVER_URL + identifier)).openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+		connection.setRequestProperty("Content-Encoding", "gzip");
+		connection.setFixedLengthStreamingMode(compressedBody.size());
+		prepareConnection(connection, groupName, preferences);
+		
+		OutputStream outputStream = connection.getOutputStream();
+		try
+		{
+			compressedBody.writeTo(outputStream);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+		
+		return connection;
+	}
+	
+	/**
+	 * Sends the inventory and group to the server as URL-encoded parameters
+	 * of a GET request. This is the original protocol and is kept for
+	 * servers that don't accept POST requests.
+	 * 
+	 * @param identifier The device's identifier.
+	 * 
+	 * @param groupName The group to which this device belongs.
+	 * 
+	 * @param inventory The JSON inventory built by {@link #buildInventory()}.
+	 * 
+	 * @param preferences The preferences holding the manifest validators.
+	 * 
+	 * @return The connection whose response hasn't been read yet.
+	 * 
+	 * @throws MalformedURLException Thrown if the URL being used to request
+	 * 								 information from the server is invalid.
+	 * 
+	 * @throws IOException Thrown if there is an error while connecting to
+	 * 					   the server.
+	 */
+	private HttpURLConnection doGetRequest(String identifier, String groupName, String inventory, SharedPreferences preferences) throws MalformedURLException, IOException
+	{
+		// Begin building the request URL.
+		StringBuilder urlBuilder = new StringBuilder(SERVER_URL);
+		urlBuilder.append(identifier);
+		
+		// Begin building the parameter map.
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("packages", inventory);
 		parameters.put("group", groupName);
 		
 		// Build the rest of the URL with the parameters.
@@ -227,25 +458,126 @@ public class Updater
 		
 		Log.i(
 			TAG, 
-			"Sending request for updates with the following GET request: " + 
-				urlBuilder.toString());
+			"Sending request for updates with the following GET request: %s", 
+				urlBuilder);
 		
 		// Build the URL object and connect to the server.
-		URL url = new URL(urlBuilder.toString());
-		URLConnection connection = url.openConnection();
+		HttpURLConnection connection = 
+			(HttpURLConnection) (new URL(urlBuilder.toString())).openConnection();
+		prepareConnection(connection, groupName, preferences);
+		
+		return connection;
+	}
+	
+	/**
+	 * Adds the headers shared by both request methods. We always accept a
+	 * compressed response and, if we are sending the same inventory as last
+	 * time, only ask for the manifest if it has changed since we last 
+	 * applied it.
+	 * 
+	 * @param connection The connection that hasn't been connected yet.
+	 * 
+	 * @param groupName The group to which this device belongs.
+	 * 
+	 * @param preferences The preferences holding the manifest validators.
+	 */
+	private void prepareConnection(HttpURLConnection connection, String groupName, SharedPreferences preferences)
+	{
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		
+		if(preferences.contains(PREFERENCE_MANIFEST_INVENTORY + groupName) &&
+			(preferences.getInt(PREFERENCE_MANIFEST_INVENTORY + groupName, 0) == mRequestInventory))
+		{
+			String eTag = preferences.getString(PREFERENCE_MANIFEST_ETAG + groupName, null);
+			if(eTag != null)
+			{
+				connection.setRequestProperty("If-None-Match", eTag);
+			}
+			
+			String lastModified = preferences.getString(PREFERENCE_MANIFEST_LAST_MODIFIED + groupName, null);
+			if(lastModified != null)
+			{
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+			}
+		}
+	}
+	
+	/**
+	 * Opens the response from a connection, decompressing it if the server
+	 * compressed it, and remembers its validators. The response itself is
+	 * read as it is parsed.
+	 * 
+	 * @param connection The connection whose request has been sent.
+	 * 
+	 * @return A reader over the response from the server or null if the
+	 * 		   server replied that the manifest has not been modified.
+	 * 
+	 * @throws IOException Thrown if there is an error while receiving data
+	 * 					   from the server.
+	 */
+	private ManifestReader readResponse(HttpURLConnection connection) throws IOException
+	{
+		if(connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+		{
+			connection.disconnect();
+			return null;
+		}
+		
+		mResponseETag = connection.getHeaderField("ETag");
+		mResponseLastModified = connection.getHeaderField("Last-Modified");
+		
+		InputStream inputStream = connection.getInputStream();
+		if("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+		{
+			inputStream = new GZIPInputStream(inputStream);
+		}
+		
+		return new ManifestReader(inputStream);
+	}
+	
+	/**
+	 * Stores the validators of the manifest that was just applied, so the
+	 * next check for this group can be made conditional. If the server sent
+	 * no validators, any old ones are cleared so that they won't be reused
+	 * with a different manifest.
+	 */
+	private void saveManifestValidators()
+	{
+		SharedPreferences.Editor editor = 
+			mContext
+				.getSharedPreferences(
+					Database.PACKAGE_PREFERENCES, 
+					Context.MODE_PRIVATE)
+				.edit();
+		
+		if((mResponseETag == null) && (mResponseLastModified == null))
+		{
+			editor.remove(PREFERENCE_MANIFEST_INVENTORY + mGroupName);
+		}
+		else
+		{
+			editor.putInt(PREFERENCE_MANIFEST_INVENTORY + mGroupName, mRequestInventory);
+		}
+		
+		if(mResponseETag == null)
+		{
+			editor.remove(PREFERENCE_MANIFEST_ETAG + mGroupName);
+		}
+		else
+		{
+			editor.putString(PREFERENCE_MANIFEST_ETAG + mGroupName, mResponseETag);
+		}
 		
-		// Read the data from the server.
-		String currLine;
-		StringBuilder stringBuilder = new StringBuilder();
-		BufferedReader buffReader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-		while((currLine = buffReader.readLine()) != null)
+		if(mResponseLastModified == null)
 		{
-			stringBuilder.append(currLine);
+			editor.remove(PREFERENCE_MANIFEST_LAST_MODIFIED + mGroupName);
+		}
+		else
+		{
+			editor.putString(PREFERENCE_MANIFEST_LAST_MODIFIED + mGroupName, mResponseLastModified);
 		}
-		buffReader.close();
 		
-		// Return the response.
-		return(stringBuilder.toString());
+		editor.commit();
 	}
 	
 	/**
@@ -253,8 +585,11 @@ public class Updater
 	 * specific layout. If this layout is not held, the entire update will be
 	 * aborted to prevent security issues.
 	 * 
-	 * @param response The response from the server which must follow a very
-	 * 				   strict format.
+	 * The packages are handled one at a time as they are read from the
+	 * server.
+	 * 
+	 * @param response A reader over the response from the server which must
+	 * 				   follow a very strict format.
 	 * 
 	 * @return Returns true if any of the packages in the response were added
 	 * 		   to the database meaning that an update needs to be done.
@@ -265,38 +600,36 @@ public class Updater
 	 * 
 	 * @throws JSONException Thrown if there is any problem with parsing the
 	 * 						 JSON in the response.
+	 * 
+	 * @throws IOException Thrown if there is an error while reading the
+	 * 					   response from the server.
 	 */
-	private boolean parseResponse(String response) throws InvalidParameterException, JSONException
+	private boolean parseResponse(ManifestReader response) throws InvalidParameterException, JSONException, IOException
 	{
 		if(response == null)
 		{
 			throw new InvalidParameterException("HTTP response was null.");
 		}
 		
-		String[] info = response.split(",", 2);
-		if((info == null) || (info.length != 2))
-		{
-			throw new InvalidParameterException("The server replied with an invalid response: " + response);
-		}
+		String header = response.readHeader();
 		
-		if((info[0] == null) || (info[1] == null))
-		{
-			throw new InvalidParameterException("The server replied with an invalid response: " + response);
-		}
+		// All of the changes are collected here and then applied to the
+		// database at once.
+		ManifestDiff diff = new ManifestDiff();
 		
 		SharedPreferences preferences = mContext.getSharedPreferences(Database.PACKAGE_PREFERENCES, Context.MODE_PRIVATE);
 		
-		if(info[0].substring(0, 8).equals("managed=") && (info[0].length() == 9))
+		if(header.startsWith("managed=") && (header.length() == 9))
 		{
 			try
 			{
-				int managedVal = Integer.decode(info[0].substring(8));
+				int managedVal = Integer.decode(header.substring(8));
 				if(managedVal == 0)
 				{
 					if(preferences.getBoolean(Database.PREFERENCES_MANAGED, false)) {
 						// If the user is switching managed state, purge the
 						// database of any old updates.
-						mDatabase.removeAllUpdates();
+						diff.clearUpdates();
 					}
 					preferences.edit().putBoolean(Database.PREFERENCES_MANAGED, false).commit();
 				}
@@ -305,7 +638,7 @@ public class Updater
 					if(preferences.getBoolean(Database.PREFERENCES_MANAGED, false)) {
 						// If the user is switching managed state, purge the
 						// database of any old updates.
-						mDatabase.removeAllUpdates();
+						diff.clearUpdates();
 					}
 					preferences.edit().putBoolean(Database.PREFERENCES_MANAGED, true).commit();
 				}
@@ -321,60 +654,26 @@ public class Updater
 		}
 		else
 		{
-			throw new InvalidParameterException("The server replied with an invalid response: " + response);
+			throw new InvalidParameterException("The server replied with an invalid response: " + header);
 		}
 		
 		boolean result = false;
-		JSONObject jsonPackageInfo;
-		JSONArray packages = new JSONArray(info[1]);
-		String[] sPackages = new String[packages.length()];
+		Set<String> sPackages = new HashSet<String>();
 		PackageInformation packageInfo;
 		
-		for(int i = 0; i < packages.length(); i++)
+		while((packageInfo = response.nextPackage()) != null)
 		{
-			try
-			{
-				jsonPackageInfo = packages.getJSONObject(i);
-				
-				PackageInformation.Action action = null;
-				String sAction = jsonPackageInfo.getString("action");
-				if(sAction.toLowerCase().equals("clean"))
-				{
-					action = Action.CLEAN;
-				}
-				else if(sAction.toLowerCase().equals("update"))
-				{
-					action = Action.UPDATE;
-				}
-				else
-				{
-					Log.e(TAG, "Invalid 'Action' value. Defaulting to update.");
-					action = Action.UPDATE;
-				}
-				
-				packageInfo = new PackageInformation(jsonPackageInfo.getString("package"), 
-													 jsonPackageInfo.getString("release"),
-													 jsonPackageInfo.getString("name"),
-													 jsonPackageInfo.getInt("ver"), 
-													 jsonPackageInfo.getString("url"),
-													 action);
-				result |= updatePackage(packageInfo);
-				
-				sPackages[i] = packageInfo.getQualifiedName();
-			}
-			catch(JSONException e)
-			{
-				Log.e(TAG, "Malformed JSON data; skipping package: " + packages.getString(i), e);
-				continue;
-			}
-			catch(IllegalArgumentException e)
-			{
-				Log.e(TAG, "Invalid package information.", e);
-				continue;
-			}
+			result |= updatePackage(diff, packageInfo);
+			
+			sPackages.add(packageInfo.getQualifiedName());
 		}
 		
-		checkForMissingManagedPackages(sPackages);
+		Log.i(TAG, "Got %d packages from the server.", sPackages.size());
+		
+		checkForMissingManagedPackages(diff, sPackages);
+		
+		Log.i(TAG, "Applying the changes from the server: %s", diff);
+		mDatabase.applyManifest(diff);
 		
 		return result;
 	}
@@ -390,31 +689,19 @@ public class Updater
 	 * 		 not be necessary as the package may have simply migrated to a new
 	 * 		 host.
 	 * 
-	 * @param givenPackages A list of packages that were given by the server.
+	 * @param diff The changes to the database to which any removals are
+	 * 			   added.
+	 * 
+	 * @param givenPackages The set of packages that were given by the server.
 	 */
-	private void checkForMissingManagedPackages(String[] givenPackages)
+	private void checkForMissingManagedPackages(ManifestDiff diff, Set<String> givenPackages)
 	{
-		LinkedList<String> managedPackages = mDatabase.getManaged();
-		ListIterator<String> iter = managedPackages.listIterator();
-		
-		while(iter.hasNext())
+		for(String currPackage : mDatabase.getManaged())
 		{
-			String currPackage = iter.next();
-			boolean packageFound = false;
-			for(int j = 0; j < givenPackages.length; j++)
-			{
-				if(givenPackages[j].equals(currPackage))
-				{
-					packageFound = true;
-					break;
-				}
-			}
-
-			if(!packageFound)
+			if(!givenPackages.contains(currPackage))
 			{
-				Log.i(TAG, "Currently managed package, " + currPackage + ", was not found in the update list, so it will no longer be managed. Any pending updates for this package are also being removed.");
-				mDatabase.stopManaging(currPackage);
-				mDatabase.removeUpdate(currPackage);
+				Log.i(TAG, "Currently managed package, %s, was not found in the update list, so it will no longer be managed. Any pending updates for this package are also being removed.", currPackage);
+				diff.stopManaging(currPackage);
 			}
 		}
 	}
@@ -424,30 +711,34 @@ public class Updater
 	 * its values against what is currently installed to determine if an
 	 * update needs to take place.
 	 * 
+	 * @param diff The changes to the database to which any changes for this
+	 * 			   package are added.
+	 * 
 	 * @param packageInformation The information pertaining to a single
 	 * 							 package that needs to be checked against
 	 * 							 what is current installed and what is 
 	 * 							 currently being monitored.
 	 * 
 	 * @return Returns true if the package needs to be updated and the update
-	 * 		   information was successfully added to the database.
+	 * 		   information was added to the changes.
 	 */
-	private boolean updatePackage(PackageInformation packageInformation)
+	private boolean updatePackage(ManifestDiff diff, PackageInformation packageInformation)
 	{
 		boolean result = false;
-		PackageManager packageManager = mContext.getPackageManager();
 		SharedPreferences preferences = mContext.getSharedPreferences(Database.PACKAGE_PREFERENCES, Context.MODE_PRIVATE);
 		
-		try
+		// Check to see if the package is currently installed.
+		int installedVersion = 
+			InstalledPackagesSnapshot
+				.getInstance(mContext)
+				.getVersionCode(packageInformation.getQualifiedName());
+		
+		if(installedVersion != InstalledPackagesSnapshot.NOT_INSTALLED)
 		{
-			// Check to see if the package is currently installed. If not, we
-			// will effectively jump to the "NameNotFoundException".
-			PackageInfo packageInfo = packageManager.getPackageInfo(packageInformation.getQualifiedName(), 0);
-			
 			// The package is installed, and we are managing it.
 			if(mDatabase.isManaged(packageInformation.getQualifiedName()))
 			{
-				result = checkInstalledVersionVsUpdate(packageInfo, packageInformation);
+				result = checkInstalledVersionVsUpdate(diff, installedVersion, packageInformation);
 			}
 			// The package is installed, but we are not managing it.
 			else
@@ -455,40 +746,37 @@ public class Updater
 				// We should begin managing it if the user is a managed user.
 				if(preferences.getBoolean(Database.PREFERENCES_MANAGED, false))
 				{
-					Log.i(TAG, "We received an update for package, " + packageInformation.getQualifiedName() + ", which we weren't managing but is installed and this is a managed user. Therefore, we are adding it to the list of managed packages.");
-					mDatabase.addManaged(packageInformation.getQualifiedName(), packageInformation.getDisplayName());
+					Log.i(TAG, "We received an update for package, %s, which we weren't managing but is installed and this is a managed user. Therefore, we are adding it to the list of managed packages.", packageInformation.getQualifiedName());
+					diff.addManaged(packageInformation.getQualifiedName(), packageInformation.getDisplayName());
 					
-					result = checkInstalledVersionVsUpdate(packageInfo, packageInformation);
+					result = checkInstalledVersionVsUpdate(diff, installedVersion, packageInformation);
 				}
 				// Otherwise, ignore it and make sure we don't store any
 				// updates about it.
 				else
 				{
-					Log.i(TAG, "We received an update for package, " + packageInformation.getQualifiedName() + ", which we aren't managing and this user isn't managed, so we are going to ignore it and remove any updates in the database pertaining to it.");
-					mDatabase.removeUpdate(packageInformation.getQualifiedName());
+					Log.i(TAG, "We received an update for package, %s, which we aren't managing and this user isn't managed, so we are going to ignore it and remove any updates in the database pertaining to it.", packageInformation.getQualifiedName());
+					diff.removeUpdate(packageInformation.getQualifiedName());
 				}
 			}
 		}
 		// The package is not currently installed.
-		catch(NameNotFoundException e)
+		else
 		{
 			// If the user is a managed user, but they don't have the package
 			// installed for some reason, we will forcibly install it.
 			if(preferences.getBoolean(Database.PREFERENCES_MANAGED, false))
 			{
-				Log.i(TAG, "This user is managed and the package, " + packageInformation.getQualifiedName() + ", is not installed. Therefore, we will begin managing it and add it to the list of updates.");
-				mDatabase.addManaged(packageInformation.getQualifiedName(), packageInformation.getDisplayName());
+				Log.i(TAG, "This user is managed and the package, %s, is not installed. Therefore, we will begin managing it and add it to the list of updates.", packageInformation.getQualifiedName());
+				diff.addManaged(packageInformation.getQualifiedName(), packageInformation.getDisplayName());
 				result = true;
 			}
 			else
 			{
-				Log.i(TAG, "This user is not managed and the package, " + packageInformation.getQualifiedName() + ", is not installed. Therefore, we will not begin managing it but will add it to the list of updates to be managed if the user so desires..");
+				Log.i(TAG, "This user is not managed and the package, %s, is not installed. Therefore, we will not begin managing it but will add it to the list of updates to be managed if the user so desires..", packageInformation.getQualifiedName());
 			}
 			
-			// I do the "&" so that if the value was still false, i.e. they
-			// aren't managed, then I don't want to indicate that a
-			// notification should be sent.
-			result &= addAsUpdate(packageInformation);
+			diff.addUpdate(packageInformation);
 		}
 		
 		return result;
@@ -512,67 +800,45 @@ public class Updater
 	 * If the update has the same version as the installed version we assume
 	 * everything is going swimmingly and ignore it.
 	 * 
-	 * @param db An accessor to the database.
+	 * @param diff The changes to the database to which any changes for this
+	 * 			   package are added.
 	 * 
-	 * @param packageInfo A PackageInfo object returned by the system about
-	 * 					  the currently installed package.
+	 * @param installedVersion The version of the currently installed
+	 * 						   package.
 	 * 
 	 * @param packageInformation A PackageInformation object that was created
 	 * 							 from the information given by this update.
 	 * 
-	 * @return Returns true iff we added an update to the database and the
-	 * 		   database took it, false otherwise.
+	 * @return Returns true iff we added an update to the changes, false
+	 * 		   otherwise.
 	 */
-	private boolean checkInstalledVersionVsUpdate(PackageInfo packageInfo, PackageInformation packageInformation)
+	private boolean checkInstalledVersionVsUpdate(ManifestDiff diff, int installedVersion, PackageInformation packageInformation)
 	{
 		boolean result = false;
 		
-		if(packageInfo.versionCode < packageInformation.getVersion())
+		if(installedVersion < packageInformation.getVersion())
 		{
 			// We are not up-to-date.
-			Log.i(TAG, "We received an update of the package, " + packageInformation.getQualifiedName() + ", so we will add it to the list of updates.");
-			result = addAsUpdate(packageInformation);
+			Log.i(TAG, "We received an update of the package, %s, so we will add it to the list of updates.", packageInformation.getQualifiedName());
+			diff.addUpdate(packageInformation);
+			result = true;
 		}
-		else if(packageInfo.versionCode > packageInformation.getVersion())
+		else if(installedVersion > packageInformation.getVersion())
 		{
 			// We have a future version!?
 			// For now, we are ignoring this case and assuming that
 			// the old version number is an error and not going to
 			// corrupt ourselves (further).
-			Log.i(TAG, "We received an update of the package, " + packageInformation.getQualifiedName() + ", where the installed version is greater than this 'update'. Therefore, we will remove any pending updates for this package.");
-			mDatabase.removeUpdate(packageInformation.getQualifiedName());
+			Log.i(TAG, "We received an update of the package, %s, where the installed version is greater than this 'update'. Therefore, we will remove any pending updates for this package.", packageInformation.getQualifiedName());
+			diff.removeUpdate(packageInformation.getQualifiedName());
 		}
 		else
 		{
 			// Everything is in sync.
-			Log.i(TAG, "We received an update of the package, " + packageInformation.getQualifiedName() + ", with the same version as the one we have now, so we will remove any pending, unnecessary updates.");
-			mDatabase.removeUpdate(packageInformation.getQualifiedName());
+			Log.i(TAG, "We received an update of the package, %s, with the same version as the one we have now, so we will remove any pending, unnecessary updates.", packageInformation.getQualifiedName());
+			diff.removeUpdate(packageInformation.getQualifiedName());
 		}
 		
 		return result;
 	}
-	
-	/**
-	 * Attempts to add the package information to the database. Returns
-	 * whether or not the database insertion succeeds.
-	 * 
-	 * @param packageInfo The information to be added to the database for the
-	 * 					  upgrade.
-	 * 
-	 * @return Returns true if the package was successfully added to the 
-	 * 		   database and false if any error occurs.
-	 */
-	private boolean addAsUpdate(PackageInformation packageInfo)
-	{
-		try
-		{
-			mDatabase.addUpdate(packageInfo);
-			return true;
-		}
-		catch(SQLException e)
-		{
-			Log.e(TAG, "Error while adding new package to the database.", e);
-			return false;
-		}
-	}
 }
@@ -1,8 +1,24 @@
 package edu.ucla.cens.systemlog;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.IBinder;
+import android.os.RemoteException;
 
 
 
@@ -11,6 +27,8 @@ public class Log {
 	private static final String TAG = "LOG";
 	
 	private static final String DEFAULT_APP_NAME = "default";
+	
+	private static final String SYSTEMLOG_PACKAGE = "edu.ucla.cens.systemlog";
 
 	private static String ACTION_LOG_MESSAGE = 
 			"edu.ucla.cens.systemlog.log_message";
@@ -29,22 +47,186 @@ public class Log {
     private static final String INFO_LOGLEVEL = "info";
     private static final String DEBUG_LOGLEVEL = "debug";
     private static final String VERBOSE_LOGLEVEL = "verbose";
+    
+    public static final int VERBOSE = android.util.Log.VERBOSE;
+    public static final int DEBUG = android.util.Log.DEBUG;
+    public static final int INFO = android.util.Log.INFO;
+    public static final int WARN = android.util.Log.WARN;
+    public static final int ERROR = android.util.Log.ERROR;
+    
+    /**
+     * The longest a message may be. Longer messages are cut down to this.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 4000;
+	
+    /**
+     * The most messages that may be waiting to be sent. Beyond this,
+     * messages go to logcat instead.
+     */
+    private static final int QUEUE_CAPACITY = 256;
+    /**
+     * The number of waiting messages that makes the flusher send them right
+     * away.
+     */
+    private static final int BATCH_SIZE = 32;
+    /**
+     * The longest a message waits before the flusher sends it.
+     */
+    private static final long FLUSH_INTERVAL = 1000;
+    /**
+     * The longest the flusher waits for the connection to SystemLog to come
+     * back before sending its messages as Intents instead.
+     */
+    private static final long RECONNECT_TIMEOUT = 5000;
+    /**
+     * How long we trust that SystemLog isn't installed before looking again,
+     * in case we missed it being installed.
+     */
+    private static final long NOT_INSTALLED_TTL = 10 * 60 * 1000;
+    
+    /**
+     * The file in our files directory that keeps the messages that couldn't
+     * be sent to SystemLog, and its size.
+     */
+    private static final String LOCAL_LOG_FILE = "systemlog.ring";
+    private static final int LOCAL_LOG_SIZE = 256 * 1024;
 	
     private static String mAppName = DEFAULT_APP_NAME;
     private static Context mContext = null;
-    private static boolean mPackageInstalled;
+    private static volatile boolean mPackageInstalled;
+    private static volatile long mInstalledCheckTime;
+    private static volatile int mMinimumLevel = VERBOSE;
+    
+    private static volatile LogRingBuffer mLocalLog = null;
+    private static boolean mLocalLogFailed = false;
+    
+    private static final BlockingQueue<LogEntry> mQueue = 
+    		new LinkedBlockingQueue<LogEntry>(QUEUE_CAPACITY);
+    private static final Object mFlushLock = new Object();
+    private static boolean mFlushRequested = false;
+    private static Thread mFlusher = null;
+    
+    private static final Object mConnectionLock = new Object();
+    private static boolean mBound = false;
+    private static ISystemLog mService = null;
+    // The tags that have been registered over a connection. Only the
+    // flusher uses these.
+    private static ISystemLog mRegisteredService = null;
+    private static final Set<String> mRegisteredTags = new HashSet<String>();
+    
+    /**
+     * Keeps track of the connection to SystemLog. If SystemLog dies, the
+     * binding stays and this is told when it is connected again.
+     */
+    private static final ServiceConnection mConnection = new ServiceConnection() {
+    	public void onServiceConnected(ComponentName name, IBinder binder) {
+    		synchronized(mConnectionLock) {
+    			mService = ISystemLog.Stub.asInterface(binder);
+    			mConnectionLock.notifyAll();
+    		}
+    	}
+    	
+    	public void onServiceDisconnected(ComponentName name) {
+    		synchronized(mConnectionLock) {
+    			mService = null;
+    		}
+    	}
+    };
+    
+    /**
+     * Keeps track of SystemLog being installed and removed so that we don't
+     * have to keep asking whether it is installed.
+     */
+    private static final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+    	@Override
+    	public void onReceive(Context context, Intent intent) {
+    		if((intent.getData() == null) || (!SYSTEMLOG_PACKAGE.equals(intent.getData().getSchemeSpecificPart()))) {
+    			return;
+    		}
+    		
+    		if(Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
+    			setInstalled(false);
+    		} else {
+    			setInstalled(true);
+    		}
+    	}
+    };
+    
+    /**
+     * One message waiting to be sent to SystemLog.
+     */
+    private static final class LogEntry {
+    	final String logLevel;
+    	final String tag;
+    	final String msg;
+    	final String appName;
+    	
+    	LogEntry(String logLevel, String tag, String msg, String appName) {
+    		this.logLevel = logLevel;
+    		this.tag = tag;
+    		this.msg = msg;
+    		this.appName = appName;
+    	}
+    }
+    
+    /**
+     * Sends the waiting messages to SystemLog in batches. It waits for a
+     * message, then until either a batch's worth of messages is waiting or
+     * the first one has waited for the flush interval, and then sends all of
+     * them at once.
+     */
+    private static final class Flusher implements Runnable {
+    	public void run() {
+    		List<LogEntry> batch = new ArrayList<LogEntry>(BATCH_SIZE);
+    		while(true) {
+    			try {
+    				batch.add(mQueue.take());
+    				
+    				long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+    				synchronized(mFlushLock) {
+    					long remaining = deadline - System.currentTimeMillis();
+    					while(!mFlushRequested && (mQueue.size() + 1 < BATCH_SIZE) && (remaining > 0)) {
+    						mFlushLock.wait(remaining);
+    						remaining = deadline - System.currentTimeMillis();
+    					}
+    					mFlushRequested = false;
+    				}
+    			} catch (InterruptedException e) {
+    				// Send whatever we have and keep going.
+    			}
+    			
+    			mQueue.drainTo(batch);
+    			sendBatch(batch);
+    			batch.clear();
+    		}
+    	}
+    }
 
-    public static void initialize(Context context, String appName) {
-    	mContext = context.getApplicationContext();
+    /**
+     * Sets up logging for this process. Only the first call looks up whether
+     * SystemLog is installed; later calls only change the application name.
+     * 
+     * @param context Any Context of this application.
+     * 
+     * @param appName The name the messages are logged under.
+     */
+    public static synchronized void initialize(Context context, String appName) {
     	mAppName = appName;
+    	if(mContext != null) {
+    		return;
+    	}
+    	mContext = context.getApplicationContext();
     	
-    	try {
-			mContext.getPackageManager().getPackageInfo("edu.ucla.cens.systemlog", 0);
-			mPackageInstalled = true;
-		} catch (NameNotFoundException e) {
-			android.util.Log.e(TAG, "SystemLog not installed");
-			mPackageInstalled = false;
-		}
+    	startFlusher();
+    	
+    	IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+    	packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    	packageFilter.addDataScheme("package");
+    	mContext.registerReceiver(mPackageReceiver, packageFilter);
+    	
+    	if(!isInstalled()) {
+    		android.util.Log.e(TAG, "SystemLog not installed");
+    	}
     }
     
     private static boolean logMessage(String logLevel, String tag, String msg) {
@@ -53,68 +235,406 @@ public class Log {
     		return false;
     	}
     	
-    	//if systemlog is uninstalled after the initialize call, no logcat logging will happen
+    	// Whether or not SystemLog is installed is kept up to date by the
+    	// package receiver, so it is only looked up again once in a while.
     	if (!mPackageInstalled) {
-    		try {
-    			mContext.getPackageManager().getPackageInfo("edu.ucla.cens.systemlog", 0);
-    			mPackageInstalled = true;
-    		} catch (NameNotFoundException e) {
-    			mPackageInstalled = false;
+    		if(System.currentTimeMillis() - mInstalledCheckTime < NOT_INSTALLED_TTL) {
+    			return false;
+    		}
+    		if(!isInstalled()) {
     			return false;
     		}
     	}
     	
+    	// Sending is left to the flusher so that logging only costs the
+    	// caller an enqueue. If the queue is full, the caller logs to logcat.
+    	if(!mQueue.offer(new LogEntry(logLevel, tag, msg, mAppName))) {
+    		return false;
+    	}
+    	
+    	if(mQueue.size() >= BATCH_SIZE) {
+    		synchronized(mFlushLock) {
+    			mFlushLock.notify();
+    		}
+    	}
+
+    	return true;
+    }
+    
+    /**
+     * Asks the flusher to send all of the waiting messages now instead of
+     * waiting for a full batch or the flush interval.
+     */
+    public static void flush() {
+    	synchronized(mFlushLock) {
+    		mFlushRequested = true;
+    		mFlushLock.notify();
+    	}
+    }
+    
+    /**
+     * Starts the thread that sends the messages if it isn't running yet.
+     */
+    private static synchronized void startFlusher() {
+    	if(mFlusher == null) {
+    		mFlusher = new Thread(new Flusher(), "SystemLog Flusher");
+    		mFlusher.setDaemon(true);
+    		mFlusher.setPriority(Thread.MIN_PRIORITY);
+    		mFlusher.start();
+    	}
+    }
+    
+    /**
+     * Looks up whether or not SystemLog is installed and remembers it.
+     * 
+     * @return True if SystemLog is installed; false, otherwise.
+     */
+    private static boolean isInstalled() {
+    	boolean installed;
+    	try {
+    		mContext.getPackageManager().getPackageInfo(SYSTEMLOG_PACKAGE, 0);
+    		installed = true;
+    	} catch (NameNotFoundException e) {
+    		installed = false;
+    	}
+    	
+    	setInstalled(installed);
+    	return installed;
+    }
+    
+    /**
+     * Remembers whether or not SystemLog is installed and binds to it or
+     * lets go of it to match.
+     * 
+     * @param installed Whether or not SystemLog is installed.
+     */
+    private static void setInstalled(boolean installed) {
+    	mInstalledCheckTime = System.currentTimeMillis();
+    	mPackageInstalled = installed;
+    	
+    	if(installed) {
+    		bind();
+    	} else {
+    		unbind();
+    	}
+    }
+    
+    /**
+     * Binds to SystemLog if we haven't already. The binding is held for as
+     * long as SystemLog is installed.
+     */
+    private static void bind() {
+    	synchronized(mConnectionLock) {
+    		if(!mBound) {
+    			mBound = mContext.bindService(new Intent(ISystemLog.class.getName()), mConnection, Context.BIND_AUTO_CREATE);
+    			if(!mBound) {
+    				android.util.Log.e(TAG, "Unable to bind to SystemLog");
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Lets go of SystemLog after it was removed. Its messages go to logcat
+     * until it is installed again.
+     */
+    private static void unbind() {
+    	synchronized(mConnectionLock) {
+    		if(mBound) {
+    			mContext.unbindService(mConnection);
+    			mBound = false;
+    			mService = null;
+    			mConnectionLock.notifyAll();
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the connection to SystemLog, waiting for a while for it to
+     * come back if we are bound but it has been lost.
+     * 
+     * @return The connection or null if there isn't one.
+     */
+    private static ISystemLog getService() {
+    	synchronized(mConnectionLock) {
+    		long deadline = System.currentTimeMillis() + RECONNECT_TIMEOUT;
+    		long remaining = RECONNECT_TIMEOUT;
+    		while(mBound && (mService == null) && (remaining > 0)) {
+    			try {
+    				mConnectionLock.wait(remaining);
+    			} catch (InterruptedException e) {
+    				break;
+    			}
+    			remaining = deadline - System.currentTimeMillis();
+    		}
+    		return mService;
+    	}
+    }
+    
+    /**
+     * Sends a batch of messages over the connection to SystemLog. Whatever
+     * can't be sent over it, because there is no connection or it died
+     * partway through, is sent as Intents instead.
+     * 
+     * @param batch The messages to send.
+     */
+    private static void sendBatch(List<LogEntry> batch) {
+    	int sent = 0;
+    	ISystemLog service = getService();
+    	if(service != null) {
+    		try {
+    			for(; sent < batch.size(); sent++) {
+    				send(service, batch.get(sent));
+    			}
+    		} catch (RemoteException e) {
+    			android.util.Log.e(TAG, "Lost the connection to SystemLog", e);
+    			synchronized(mConnectionLock) {
+    				if(mService == service) {
+    					mService = null;
+    				}
+    			}
+    		}
+    	}
+    	
+    	for(; sent < batch.size(); sent++) {
+    		send(batch.get(sent));
+    	}
+    }
+    
+    /**
+     * Sends one message over the connection to SystemLog, registering its
+     * tag with our application first if it hasn't been over this
+     * connection.
+     * 
+     * @param service The connection to SystemLog.
+     * 
+     * @param entry The message to send.
+     * 
+     * @throws RemoteException Thrown if the connection died.
+     */
+    private static void send(ISystemLog service, LogEntry entry) throws RemoteException {
+    	if(service != mRegisteredService) {
+    		mRegisteredTags.clear();
+    		mRegisteredService = service;
+    	}
+    	if(!mRegisteredTags.contains(entry.tag)) {
+    		service.registerLogger(entry.tag, entry.appName);
+    		mRegisteredTags.add(entry.tag);
+    	}
+    	
+    	if(ERROR_LOGLEVEL.equals(entry.logLevel)) {
+    		service.error(entry.tag, entry.msg);
+    	} else if(WARNING_LOGLEVEL.equals(entry.logLevel)) {
+    		service.warning(entry.tag, entry.msg);
+    	} else if(INFO_LOGLEVEL.equals(entry.logLevel)) {
+    		service.info(entry.tag, entry.msg);
+    	} else if(DEBUG_LOGLEVEL.equals(entry.logLevel)) {
+    		service.debug(entry.tag, entry.msg);
+    	} else {
+    		service.verbose(entry.tag, entry.msg);
+    	}
+    }
+    
+    /**
+     * Sends one message to SystemLog as an Intent. This is only used when
+     * there is no connection to it.
+     * 
+     * @param entry The message to send.
+     */
+    private static void send(LogEntry entry) {
     	Intent i = new Intent(ACTION_LOG_MESSAGE);
 
-		i.putExtra(KEY_LOG_LEVEL, logLevel);
-		i.putExtra(KEY_APP_NAME, mAppName);
-		i.putExtra(KEY_TAG, tag);
-		i.putExtra(KEY_MSG, msg);
+		i.putExtra(KEY_LOG_LEVEL, entry.logLevel);
+		i.putExtra(KEY_APP_NAME, entry.appName);
+		i.putExtra(KEY_TAG, entry.tag);
+		i.putExtra(KEY_MSG, entry.msg);
 		
 		mContext.startService(i);
-
-    	return true;
     }
 	
+    /**
+     * Sets the lowest level that is logged. Messages below it are dropped
+     * before anything is done with them, including formatting them.
+     * 
+     * @param level One of VERBOSE, DEBUG, INFO, WARN, or ERROR.
+     */
+    public static void setMinimumLevel(int level) {
+    	mMinimumLevel = level;
+    }
+    
+    /**
+     * Returns whether or not messages of a level are logged. Call sites that
+     * do real work to build a message can check this first.
+     * 
+     * @param level One of VERBOSE, DEBUG, INFO, WARN, or ERROR.
+     * 
+     * @return True if messages of that level are logged; false, otherwise.
+     */
+    public static boolean isLoggable(int level) {
+    	return level >= mMinimumLevel;
+    }
+    
     public static void i(String tag, String message) {
-    	
-    	if(!logMessage(INFO_LOGLEVEL, tag, message)) {
-    		android.util.Log.i(tag, message);
+    	log(INFO, INFO_LOGLEVEL, tag, message);
+    }
+    
+    public static void i(String tag, String format, Object... args) {
+    	if(isLoggable(INFO)) {
+    		log(INFO, INFO_LOGLEVEL, tag, String.format(format, args));
     	}
     }
     
     public static void d(String tag, String message) {
-    	
-    	if(!logMessage(DEBUG_LOGLEVEL, tag, message)) {
-    		android.util.Log.d(tag, message);
+    	log(DEBUG, DEBUG_LOGLEVEL, tag, message);
+    }
+    
+    public static void d(String tag, String format, Object... args) {
+    	if(isLoggable(DEBUG)) {
+    		log(DEBUG, DEBUG_LOGLEVEL, tag, String.format(format, args));
     	}
     }
     
     public static void e(String tag, String message, Exception e) {
+    	if(!isLoggable(ERROR)) {
+    		return;
+    	}
     	
+    	message = truncate(message);
     	if(!logMessage(ERROR_LOGLEVEL, tag, message + e.getMessage())) {
     		 android.util.Log.e(tag, message, e);
+    		 logLocally(ERROR, tag, message + e.getMessage());
     	}
     }
 
     public static void e(String tag, String message) {
-    	
-    	if(!logMessage(ERROR_LOGLEVEL, tag, message)) {
-    		android.util.Log.e(tag, message);
+    	log(ERROR, ERROR_LOGLEVEL, tag, message);
+    }
+    
+    public static void e(String tag, String format, Object... args) {
+    	if(isLoggable(ERROR)) {
+    		log(ERROR, ERROR_LOGLEVEL, tag, String.format(format, args));
     	}
     }
 
     public static void v(String tag, String message) {
-    	
-    	if(!logMessage(VERBOSE_LOGLEVEL, tag, message)) {
-    		android.util.Log.v(tag, message);
+    	log(VERBOSE, VERBOSE_LOGLEVEL, tag, message);
+    }
+    
+    public static void v(String tag, String format, Object... args) {
+    	if(isLoggable(VERBOSE)) {
+    		log(VERBOSE, VERBOSE_LOGLEVEL, tag, String.format(format, args));
     	}
     }
 
     public static void w(String tag, String message) {
+    	log(WARN, WARNING_LOGLEVEL, tag, message);
+    }
+    
+    public static void w(String tag, String format, Object... args) {
+    	if(isLoggable(WARN)) {
+    		log(WARN, WARNING_LOGLEVEL, tag, String.format(format, args));
+    	}
+    }
+    
+    /**
+     * Logs a message to SystemLog or, if it can't be, to logcat. Nothing is
+     * done if its level is below the minimum.
+     * 
+     * @param level The level as one of VERBOSE, DEBUG, INFO, WARN, or ERROR.
+     * 
+     * @param logLevel The name of the level as SystemLog knows it.
+     * 
+     * @param tag The tag of the message.
+     * 
+     * @param message The message.
+     */
+    private static void log(int level, String logLevel, String tag, String message) {
+    	if(!isLoggable(level)) {
+    		return;
+    	}
+    	
+    	message = truncate(message);
+    	if(!logMessage(logLevel, tag, message)) {
+    		android.util.Log.println(level, tag, message);
+    		logLocally(level, tag, message);
+    	}
+    }
+    
+    /**
+     * Writes every message in the local log, oldest first, as a line of
+     * text. The local log keeps the most recent messages that couldn't be
+     * sent to SystemLog, such as when it isn't installed.
+     * 
+     * @param writer Where the messages are written.
+     * 
+     * @return True if the local log was written; false if there isn't one.
+     * 
+     * @throws IOException Thrown if the writer fails.
+     */
+    public static boolean exportLocalLog(Writer writer) throws IOException {
+    	LogRingBuffer localLog = getLocalLog();
+    	if(localLog == null) {
+    		return false;
+    	}
+    	
+    	localLog.export(writer);
+    	return true;
+    }
+    
+    /**
+     * Keeps a message that couldn't be sent to SystemLog in the local log.
+     * 
+     * @param level The level of the message.
+     * 
+     * @param tag The tag of the message.
+     * 
+     * @param message The message.
+     */
+    private static void logLocally(int level, String tag, String message) {
+    	LogRingBuffer localLog = getLocalLog();
+    	if(localLog != null) {
+    		localLog.write(System.currentTimeMillis(), level, tag, message);
+    	}
+    }
+    
+    /**
+     * Returns the local log, opening it the first time it is needed.
+     * 
+     * @return The local log or null if it can't be opened.
+     */
+    private static LogRingBuffer getLocalLog() {
+    	LogRingBuffer localLog = mLocalLog;
+    	if(localLog != null) {
+    		return localLog;
+    	}
     	
-    	if(!logMessage(WARNING_LOGLEVEL, tag, message)) {
-    		android.util.Log.w(tag, message);
+    	synchronized(mConnectionLock) {
+    		if((mLocalLog == null) && (!mLocalLogFailed) && (mContext != null)) {
+    			try {
+    				mLocalLog = new LogRingBuffer(new File(mContext.getFilesDir(), LOCAL_LOG_FILE), LOCAL_LOG_SIZE);
+    			} catch (IOException e) {
+    				android.util.Log.e(TAG, "Unable to open the local log", e);
+    				mLocalLogFailed = true;
+    			}
+    		}
+    		return mLocalLog;
     	}
     }
+    
+    /**
+     * Cuts a message down to MAX_MESSAGE_LENGTH characters, noting how much
+     * was cut, so that dumps such as whole manifests don't flood the log.
+     * 
+     * @param message The message.
+     * 
+     * @return The message, cut down if it was too long.
+     */
+    private static String truncate(String message) {
+    	if((message == null) || (message.length() <= MAX_MESSAGE_LENGTH)) {
+    		return message;
+    	}
+    	
+    	return message.substring(0, MAX_MESSAGE_LENGTH) + 
+    			"... [" + (message.length() - MAX_MESSAGE_LENGTH) + " more characters]";
+    }
 }
@@ -0,0 +1,416 @@
+package edu.ucla.cens.systemlog;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fixed-size log kept in a file on the device, for when SystemLog isn't
+ * installed. The file is allocated once and memory mapped, and new records
+ * overwrite the oldest ones, so it always holds the most recent history and
+ * writing to it costs about the same no matter how much has been logged.
+ * 
+ * The file starts with a header of four ints: a magic number, the offset at
+ * which the next record is written, the offset of the oldest record, and
+ * the number of records. Each record is:
+ *  - short: the length of the whole record.
+ *  - long: the time it was logged in milliseconds.
+ *  - byte: its level.
+ *  - short: the id of its tag.
+ *  - the message in UTF-8.
+ * A record never wraps around the end of the file. If it doesn't fit, a
+ * length of 0 marks the end and it is written at the start instead.
+ * 
+ * Tags are kept in a second file, one per line, and a tag's id is its line.
+ * 
+ * @version 1.0
+ */
+public class LogRingBuffer {
+	
+	private static final int MAGIC = 0x4c524231;
+	
+	private static final int HEADER_LENGTH = 16;
+	private static final int HEAD_OFFSET = 4;
+	private static final int TAIL_OFFSET = 8;
+	private static final int COUNT_OFFSET = 12;
+	
+	private static final int RECORD_HEADER_LENGTH = 13;
+	private static final int WRAP_MARKER_LENGTH = 2;
+	
+	/**
+	 * The most bytes of a message that are kept.
+	 */
+	private static final int MAX_MESSAGE_BYTES = 1024;
+	
+	private static final int UNKNOWN_TAG = -1;
+	private static final String TAG_FILE_EXTENSION = ".tags";
+	
+	private static final int ZERO_CHUNK_LENGTH = 4096;
+	
+	private final MappedByteBuffer mBuffer;
+	private final int mCapacity;
+	
+	private int mHead;
+	private int mTail;
+	private int mCount;
+	
+	private final File mTagFile;
+	private final Map<String, Integer> mTagIds = new HashMap<String, Integer>();
+	private final List<String> mTags = new ArrayList<String>();
+	
+	/**
+	 * Opens the log in a file, creating it if it doesn't exist or isn't a
+	 * log of this size.
+	 * 
+	 * @param file The file for the log.
+	 * 
+	 * @param size The size of the file in bytes.
+	 * 
+	 * @throws IOException Thrown if the file can't be created or mapped.
+	 */
+	public LogRingBuffer(File file, int size) throws IOException {
+		mCapacity = size - HEADER_LENGTH;
+		mTagFile = new File(file.getPath() + TAG_FILE_EXTENSION);
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			boolean created = (randomAccessFile.length() != size);
+			if(created) {
+				randomAccessFile.setLength(size);
+			}
+			mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// The mapping stays valid after the file is closed.
+			randomAccessFile.close();
+		}
+		
+		mHead = mBuffer.getInt(HEAD_OFFSET);
+		mTail = mBuffer.getInt(TAIL_OFFSET);
+		mCount = mBuffer.getInt(COUNT_OFFSET);
+		if((mBuffer.getInt(0) != MAGIC) ||
+				(mHead < 0) || (mHead > mCapacity) ||
+				(mTail < 0) || (mTail >= mCapacity) ||
+				(mCount < 0)) {
+			reset();
+		}
+		
+		readTags();
+	}
+	
+	/**
+	 * Adds a record, overwriting the oldest records if there isn't room.
+	 * This doesn't allocate anything unless the tag is new.
+	 * 
+	 * @param time The time the message was logged in milliseconds.
+	 * 
+	 * @param level The level of the message.
+	 * 
+	 * @param tag The tag of the message.
+	 * 
+	 * @param message The message. Only its first MAX_MESSAGE_BYTES bytes
+	 * 				  are kept.
+	 */
+	public synchronized void write(long time, int level, String tag, String message) {
+		if(message == null) {
+			message = "null";
+		}
+		
+		// Work out how much of the message fits.
+		int messageBytes = 0;
+		int messageChars = 0;
+		int length = message.length();
+		while(messageChars < length) {
+			int charBytes = utf8Length(message, messageChars);
+			if(messageBytes + charBytes > MAX_MESSAGE_BYTES) {
+				break;
+			}
+			messageBytes += charBytes;
+			messageChars += isPair(message, messageChars) ? 2 : 1;
+		}
+		
+		int recordLength = RECORD_HEADER_LENGTH + messageBytes;
+		makeRoom(recordLength);
+		
+		int position = HEADER_LENGTH + mHead;
+		mBuffer.putShort(position, (short) recordLength);
+		mBuffer.putLong(position + 2, time);
+		mBuffer.put(position + 10, (byte) level);
+		mBuffer.putShort(position + 11, (short) getTagId(tag));
+		
+		position += RECORD_HEADER_LENGTH;
+		for(int i = 0; i < messageChars; i++) {
+			position = putUtf8(message, i, position);
+			if(isPair(message, i)) {
+				i++;
+			}
+		}
+		
+		mHead += recordLength;
+		mCount++;
+		writeHeader();
+	}
+	
+	/**
+	 * Writes every record, oldest first, as a line of text.
+	 * 
+	 * @param writer Where the records are written.
+	 * 
+	 * @throws IOException Thrown if the writer fails.
+	 */
+	public synchronized void export(Writer writer) throws IOException {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		
+		int offset = mTail;
+		for(int i = 0; i < mCount; i++) {
+			offset = skipWrapMarker(offset);
+			int position = HEADER_LENGTH + offset;
+			
+			int recordLength = mBuffer.getShort(position);
+			long time = mBuffer.getLong(position + 2);
+			int level = mBuffer.get(position + 10);
+			int tagId = mBuffer.getShort(position + 11);
+			
+			byte[] messageBytes = new byte[recordLength - RECORD_HEADER_LENGTH];
+			for(int j = 0; j < messageBytes.length; j++) {
+				messageBytes[j] = mBuffer.get(position + RECORD_HEADER_LENGTH + j);
+			}
+			
+			writer.write(dateFormat.format(new Date(time)));
+			writer.write(' ');
+			writer.write(getLevelLetter(level));
+			writer.write('/');
+			writer.write(((tagId >= 0) && (tagId < mTags.size())) ? mTags.get(tagId) : ("#" + tagId));
+			writer.write(": ");
+			writer.write(new String(messageBytes, "UTF-8"));
+			writer.write('\n');
+			
+			offset += recordLength;
+		}
+		writer.flush();
+	}
+	
+	/**
+	 * Moves the head to where a record of some length fits, overwriting the
+	 * oldest records as needed.
+	 * 
+	 * @param recordLength The length of the record.
+	 */
+	private void makeRoom(int recordLength) {
+		while(true) {
+			if(mCount == 0) {
+				mHead = 0;
+				mTail = 0;
+				return;
+			}
+			
+			if(mHead > mTail) {
+				// The records are between the tail and the head.
+				if(mCapacity - mHead >= recordLength) {
+					return;
+				}
+				
+				if(mCapacity - mHead >= WRAP_MARKER_LENGTH) {
+					mBuffer.putShort(HEADER_LENGTH + mHead, (short) 0);
+				}
+				mHead = 0;
+			} else {
+				// The records run from the tail to the end and then from the
+				// start to the head.
+				if(mTail - mHead >= recordLength) {
+					return;
+				}
+				
+				mTail = skipWrapMarker(mTail + mBuffer.getShort(HEADER_LENGTH + mTail));
+				mCount--;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the offset of the next record, which is at the start if the
+	 * end has been marked or there is no room for a record.
+	 * 
+	 * @param offset The offset just after a record.
+	 * 
+	 * @return The offset of the next record.
+	 */
+	private int skipWrapMarker(int offset) {
+		if((mCapacity - offset < WRAP_MARKER_LENGTH) || (mBuffer.getShort(HEADER_LENGTH + offset) == 0)) {
+			return 0;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Empties the log.
+	 */
+	private void reset() {
+		byte[] zeros = new byte[ZERO_CHUNK_LENGTH];
+		mBuffer.position(0);
+		while(mBuffer.remaining() > 0) {
+			mBuffer.put(zeros, 0, Math.min(zeros.length, mBuffer.remaining()));
+		}
+		
+		mHead = 0;
+		mTail = 0;
+		mCount = 0;
+		mBuffer.putInt(0, MAGIC);
+		writeHeader();
+	}
+	
+	/**
+	 * Saves where the head and tail are and how many records there are.
+	 */
+	private void writeHeader() {
+		mBuffer.putInt(HEAD_OFFSET, mHead);
+		mBuffer.putInt(TAIL_OFFSET, mTail);
+		mBuffer.putInt(COUNT_OFFSET, mCount);
+	}
+	
+	/**
+	 * Returns the id of a tag, adding it to the tag file if it is new.
+	 * 
+	 * @param tag The tag.
+	 * 
+	 * @return The id of the tag or UNKNOWN_TAG if it can't be saved.
+	 */
+	private int getTagId(String tag) {
+		Integer id = mTagIds.get(tag);
+		if(id != null) {
+			return id;
+		}
+		
+		if((tag == null) || (tag.indexOf('\n') != -1) || (mTags.size() > Short.MAX_VALUE)) {
+			return UNKNOWN_TAG;
+		}
+		
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(mTagFile, true), "UTF-8");
+			try {
+				writer.write(tag);
+				writer.write('\n');
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			android.util.Log.e("LOG", "Unable to save a tag for the local log", e);
+			return UNKNOWN_TAG;
+		}
+		
+		mTagIds.put(tag, mTags.size());
+		mTags.add(tag);
+		return mTags.size() - 1;
+	}
+	
+	/**
+	 * Reads the tags that were saved by earlier processes.
+	 */
+	private void readTags() {
+		if(!mTagFile.exists()) {
+			return;
+		}
+		
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mTagFile), "UTF-8"));
+			try {
+				String tag;
+				while((tag = reader.readLine()) != null) {
+					mTagIds.put(tag, mTags.size());
+					mTags.add(tag);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			android.util.Log.e("LOG", "Unable to read the tags of the local log", e);
+		}
+	}
+	
+	/**
+	 * Returns whether or not the char at an index starts a surrogate pair.
+	 */
+	private static boolean isPair(String value, int index) {
+		return Character.isHighSurrogate(value.charAt(index)) &&
+				(index + 1 < value.length()) &&
+				Character.isLowSurrogate(value.charAt(index + 1));
+	}
+	
+	/**
+	 * Returns the number of bytes the character at an index takes in UTF-8.
+	 * Lone surrogates are written as '?'.
+	 */
+	private static int utf8Length(String value, int index) {
+		char c = value.charAt(index);
+		if(c < 0x80) {
+			return 1;
+		} else if(c < 0x800) {
+			return 2;
+		} else if(isPair(value, index)) {
+			return 4;
+		} else if(Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+			return 1;
+		}
+		return 3;
+	}
+	
+	/**
+	 * Writes the character at an index in UTF-8 and returns the position
+	 * after it.
+	 */
+	private int putUtf8(String value, int index, int position) {
+		char c = value.charAt(index);
+		if(c < 0x80) {
+			mBuffer.put(position++, (byte) c);
+		} else if(c < 0x800) {
+			mBuffer.put(position++, (byte) (0xc0 | (c >> 6)));
+			mBuffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+		} else if(isPair(value, index)) {
+			int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+			mBuffer.put(position++, (byte) (0xf0 | (codePoint >> 18)));
+			mBuffer.put(position++, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+			mBuffer.put(position++, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+			mBuffer.put(position++, (byte) (0x80 | (codePoint & 0x3f)));
+		} else if(Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+			mBuffer.put(position++, (byte) '?');
+		} else {
+			mBuffer.put(position++, (byte) (0xe0 | (c >> 12)));
+			mBuffer.put(position++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+			mBuffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+		}
+		return position;
+	}
+	
+	/**
+	 * Returns the letter logcat uses for a level.
+	 */
+	private static char getLevelLetter(int level) {
+		switch(level) {
+		case android.util.Log.VERBOSE:
+			return 'V';
+		case android.util.Log.DEBUG:
+			return 'D';
+		case android.util.Log.INFO:
+			return 'I';
+		case android.util.Log.WARN:
+			return 'W';
+		case android.util.Log.ERROR:
+			return 'E';
+		default:
+			return '?';
+		}
+	}
+}